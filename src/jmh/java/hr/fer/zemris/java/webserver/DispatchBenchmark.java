@@ -0,0 +1,81 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hr.fer.zemris.java.webserver.ResolvedPathCache.Resolution;
+import hr.fer.zemris.java.webserver.ResolvedPathCache.ResolvedFile;
+
+// work done for every request before a static file is served: worker prefix of the url, fingerprint
+// check, key of the file in the static cache
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	private static final String URL = "images/bateman1.jpg";
+	private static final String REQUESTED = "/" + URL;
+
+	private Path documentRoot;
+	private WebrootIndex index;
+	private ResolvedPathCache resolvedPaths = new ResolvedPathCache(100, 1000);
+	private String fingerprinted;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		documentRoot = Files.createTempDirectory("webroot");
+		Path file = Files.createDirectories(documentRoot.resolve("images")).resolve("bateman1.jpg");
+		Files.write(file, new byte[1000]);
+		index = new WebrootIndex(documentRoot, Map.of("jpg", "image/jpeg"));
+		index.build();
+		fingerprinted = index.fingerprint(URL);
+		ResolvedFile resolved = new ResolvedFile(file, Files.readAttributes(file, BasicFileAttributes.class), "image/jpeg", null);
+		resolvedPaths.put(URL, new Resolution(resolved), resolvedPaths.generation());
+	}
+
+	@Benchmark
+	public String urlStart() {
+		return SmartHttpServer.urlStart(REQUESTED);
+	}
+
+	@Benchmark
+	public String plainUrl() {
+		return index.unfingerprint(URL);
+	}
+
+	@Benchmark
+	public String fingerprintedUrl() {
+		return index.unfingerprint(fingerprinted);
+	}
+
+	// cache key as it was computed for every request
+	@Benchmark
+	public Path resolvedCacheKey() {
+		return documentRoot.resolve(URL).normalize();
+	}
+
+	// cache key of a path resolved before
+	@Benchmark
+	public Path cachedCacheKey() {
+		return resolvedPaths.get(URL).getFile().getPath();
+	}
+}
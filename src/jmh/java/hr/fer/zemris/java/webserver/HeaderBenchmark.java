@@ -0,0 +1,57 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+
+// cost of encoding response headers: header of a dynamic page (chunked, with a session cookie)
+// and entity header of a static file as the file cache prepares it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private OutputStream out = OutputStream.nullOutputStream();
+
+	@Benchmark
+	public RequestContext dynamicHeader() throws IOException {
+		List<RCCookie> cookies = new ArrayList<RCCookie>();
+		cookies.add(new RCCookie("sid", "ZMIPUSHVQWMWJBZGMNME", null, "www.localhost.com", "/"));
+		RequestContext rc = new RequestContext(out, new HashMap<String, String>(), new HashMap<String, String>(), cookies);
+		rc.setKeepAlive(true, true);
+		rc.setMimeType("text/html");
+		rc.setHeader("Vary", "Accept-Encoding");
+		return rc.write(EMPTY);
+	}
+
+	@Benchmark
+	public byte[] staticEntityHeader() {
+		RequestContext rc = new RequestContext(out, new HashMap<String, String>(), new HashMap<String, String>(), new ArrayList<RCCookie>());
+		rc.setMimeType("image/png");
+		rc.setHeader("Accept-Ranges", "bytes");
+		rc.setHeader("ETag", "\"215f11-1a1505e2e14-51ef5\"");
+		rc.setHeader("Last-Modified", "Sun, 18 Oct 2026 18:55:11 GMT");
+		rc.setContentLength(2186993L);
+		return rc.encodeEntityHeader();
+	}
+}
@@ -0,0 +1,50 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+
+// output of a smart script page: many short strings written one by one
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextWriteBenchmark {
+
+	private static final String[] PIECES = {"<tr><td>", "a", "</td><td>", "2.5", "</td></tr>\n",
+			"<p>Zbroj je ", "7", ".</p>\n", "<img src=\"/images/bateman1.jpg\"/>\n"};
+
+	@Param({"UTF-8", "ISO-8859-2"})
+	private String encoding;
+
+	private OutputStream out = OutputStream.nullOutputStream();
+
+	@Benchmark
+	public RequestContext page() throws IOException {
+		RequestContext rc = new RequestContext(out, new HashMap<String, String>(), new HashMap<String, String>(), new ArrayList<RCCookie>());
+		rc.setEncoding(encoding);
+		for (int i = 0; i < 20; i++) {
+			for (String piece : PIECES) {
+				rc.write(piece);
+			}
+		}
+		return rc;
+	}
+}
@@ -169,6 +169,13 @@ public class SmartScriptEngine {
 						helperValue1 = tempStack.pop(key);
 						requestContext.setMimeType(helperValue1.getValue().toString());
 					}
+					else if(currentText.equals("@assetUrl")){
+						// uzimamo putanju staticke datoteke sa stoga i stavljamo njen url
+						// sa hashom sadrzaja na stog, takav url klijent moze cuvati zauvijek
+						helperValue1 = tempStack.pop(key);
+						helperValue1.setValue(requestContext.assetUrl(helperValue1.getValue().toString()));
+						tempStack.push(key, helperValue1);
+					}
 					else if(currentText.equals("@paramGet")){
 						// uzimamo dvije vrijednosti sa stoga, prva je ime parametra, druga je default vrijednost
 						// ako postoji parametar sa tim imenom u request contextu, stavljamo njegovu vrijednost na stog
@@ -0,0 +1,220 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+
+// incremental decoder of a request body framed by Content-Length or chunked transfer coding
+// raw bytes are given as they arrive, decoder takes only bytes of the body, so bytes of the next
+// (pipelined) request are left where they are; chunk extensions and trailers are skipped
+public class BodyDecoder {
+
+	// trailer section of a chunked body may take at most so many bytes
+	private static final int MAX_TRAILER_SIZE = 8192;
+
+	// states of the chunked decoder
+	private static final int SIZE_START = 0;
+	private static final int SIZE = 1;
+	private static final int SIZE_EXTENSION = 2;
+	private static final int SIZE_LF = 3;
+	private static final int DATA = 4;
+	private static final int DATA_CR = 5;
+	private static final int DATA_LF = 6;
+	private static final int TRAILER_START = 7;
+	private static final int TRAILER_LINE = 8;
+	private static final int END_LF = 9;
+	private static final int DONE = 10;
+
+	private boolean chunked;
+	private long maxSize;
+	private int state;
+	// bytes of the current chunk (or of the whole body with known length) not decoded yet
+	private long remaining;
+	private long size;
+	private int trailerSize;
+	private int consumed;
+
+	private BodyDecoder(boolean chunked, long length, long maxSize) {
+		this.chunked = chunked;
+		this.maxSize = maxSize;
+		if (chunked) {
+			state = SIZE_START;
+		} else {
+			state = length == 0 ? DONE : DATA;
+			remaining = length;
+			size = length;
+		}
+	}
+
+	// does the request say it has a body (it may still be empty)
+	public static boolean hasBody(HttpRequestParser request) {
+		return request.header("Transfer-Encoding") != null || request.header("Content-Length") != null;
+	}
+
+	// decoder of the request's body, null if it has none; a body which can't be framed or is known
+	// to be larger than maxSize is refused
+	public static BodyDecoder forRequest(HttpRequestParser request, long maxSize) throws InvalidBodyException {
+		HttpRequestParser.Slice transferEncoding = request.header("Transfer-Encoding");
+		HttpRequestParser.Slice contentLength = request.header("Content-Length");
+		if (transferEncoding != null) {
+			// with both headers the length is not trusted, such request may smuggle another one
+			if (contentLength != null || !transferEncoding.toString().trim().equalsIgnoreCase("chunked")) {
+				throw new InvalidBodyException(400, "Bad Request");
+			}
+			return new BodyDecoder(true, 0, maxSize);
+		}
+		if (contentLength == null) {
+			return null;
+		}
+		long length = 0;
+		if (contentLength.isEmpty() || contentLength.length() > 18) {
+			throw new InvalidBodyException(400, "Bad Request");
+		}
+		for (int i = 0; i < contentLength.length(); i++) {
+			char c = contentLength.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new InvalidBodyException(400, "Bad Request");
+			}
+			length = length * 10 + (c - '0');
+		}
+		if (length > maxSize) {
+			throw new InvalidBodyException(413, "Payload Too Large");
+		}
+		return length == 0 ? null : new BodyDecoder(false, length, maxSize);
+	}
+
+	// decodes bytes of data into out, returns how many bytes were written into out; consumed() tells
+	// how many bytes of data belonged to the body, decoding stops when out is full or the body ends
+	public int decode(byte[] data, int offset, int length, byte[] out, int outOffset, int outLength) throws InvalidBodyException {
+		int position = offset;
+		int end = offset + length;
+		int produced = 0;
+		while (state != DONE) {
+			if (state == DATA) {
+				int count = (int) Math.min(remaining, Math.min(end - position, outLength - produced));
+				if (count == 0) {
+					break;
+				}
+				System.arraycopy(data, position, out, outOffset + produced, count);
+				position += count;
+				produced += count;
+				remaining -= count;
+				if (remaining == 0) {
+					state = chunked ? DATA_CR : DONE;
+				}
+				continue;
+			}
+			if (position == end) {
+				break;
+			}
+			byte c = data[position++];
+			switch (state) {
+			case SIZE_START:
+			case SIZE:
+				int digit = Character.digit(c, 16);
+				if (digit >= 0) {
+					remaining = remaining * 16 + digit;
+					if (size + remaining > maxSize) {
+						throw new InvalidBodyException(413, "Payload Too Large");
+					}
+					state = SIZE;
+				} else if (state == SIZE && (c == ';' || c == ' ' || c == '\t')) {
+					state = SIZE_EXTENSION;
+				} else if (state == SIZE && (c == '\r' || c == '\n')) {
+					sizeLineRead(c);
+				} else {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+				break;
+			case SIZE_EXTENSION:
+				if (c == '\r' || c == '\n') {
+					sizeLineRead(c);
+				}
+				break;
+			case SIZE_LF:
+				if (c != '\n') {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+				chunkStarts();
+				break;
+			case DATA_CR:
+				if (c == '\n') {
+					state = SIZE_START;
+				} else if (c == '\r') {
+					state = DATA_LF;
+				} else {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+				break;
+			case DATA_LF:
+				if (c != '\n') {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+				state = SIZE_START;
+				break;
+			case TRAILER_START:
+				if (c == '\r') {
+					state = END_LF;
+				} else if (c == '\n') {
+					state = DONE;
+				} else {
+					state = TRAILER_LINE;
+				}
+				break;
+			case TRAILER_LINE:
+				if (++trailerSize > MAX_TRAILER_SIZE) {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+				if (c == '\n') {
+					state = TRAILER_START;
+				}
+				break;
+			case END_LF:
+				if (c != '\n') {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+				state = DONE;
+				break;
+			}
+		}
+		consumed = position - offset;
+		return produced;
+	}
+
+	private void sizeLineRead(byte c) {
+		if (c == '\r') {
+			state = SIZE_LF;
+		} else {
+			chunkStarts();
+		}
+	}
+
+	// last chunk has size 0, trailer section follows it
+	private void chunkStarts() {
+		size += remaining;
+		state = remaining == 0 ? TRAILER_START : DATA;
+	}
+
+	// bytes of data the last decode took
+	public int consumed() {
+		return consumed;
+	}
+
+	public boolean isDone() {
+		return state == DONE;
+	}
+
+	// body which can't be received: 400 if it is malformed, 413 if it is too large
+	public static class InvalidBodyException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private int status;
+
+		public InvalidBodyException(int status, String reason) {
+			super(reason);
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// pool of equally sized buffers, so responses don't allocate (direct buffers are especially expensive to allocate)
+public class BufferPool {
+
+	private int bufferSize;
+	private boolean direct;
+	private int maxPooled;
+	private Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private AtomicInteger pooled = new AtomicInteger();
+
+	public BufferPool(int bufferSize, boolean direct, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.maxPooled = maxPooled;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	// cleared buffer, taken from the pool if there is one
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		}
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	// buffers which did not come from this pool (or don't fit in it any more) are left to the garbage collector
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct || buffer.isReadOnly()) {
+			return;
+		}
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffers.offer(buffer);
+	}
+}
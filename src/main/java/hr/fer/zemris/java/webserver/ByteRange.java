@@ -0,0 +1,101 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// range of bytes (first and last position, both included) requested with the Range header
+public class ByteRange {
+
+	// more ranges than this are not served, the whole file is sent instead
+	private static final int MAX_RANGES = 16;
+
+	private long first;
+	private long last;
+
+	public ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	public long getFirst() {
+		return first;
+	}
+
+	public long getLast() {
+		return last;
+	}
+
+	public long length() {
+		return last - first + 1;
+	}
+
+	// value of Content-Range header for this range of a file with given size
+	public String contentRange(long size) {
+		return "bytes " + first + "-" + last + "/" + size;
+	}
+
+	// satisfiable ranges of Range header value (bytes=0-99,200-,-50) for a file of given size,
+	// empty list if none of them is satisfiable (416), null if the value is not a valid byte range set
+	// or it asks for too many ranges (then the header is ignored and the whole file is sent)
+	public static List<ByteRange> parse(String header, long size) {
+		int equals = header.indexOf('=');
+		if (equals < 0 || !header.substring(0, equals).trim().equalsIgnoreCase("bytes")) {
+			return null;
+		}
+		String[] specs = header.substring(equals + 1).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<ByteRange> ranges = new ArrayList<ByteRange>();
+		boolean any = false;
+		for (String spec : specs) {
+			spec = spec.trim();
+			if (spec.isEmpty()) {
+				continue;
+			}
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			String from = spec.substring(0, dash);
+			String to = spec.substring(dash + 1);
+			if (!isNumber(to) && !to.isEmpty() || !isNumber(from) && !from.isEmpty() || from.isEmpty() && to.isEmpty()) {
+				return null;
+			}
+			any = true;
+			try {
+				if (from.isEmpty()) {
+					// suffix: last n bytes
+					long suffix = Long.parseLong(to);
+					if (suffix > 0 && size > 0) {
+						ranges.add(new ByteRange(Math.max(size - suffix, 0), size - 1));
+					}
+					continue;
+				}
+				long first = Long.parseLong(from);
+				long last = to.isEmpty() ? Long.MAX_VALUE : Long.parseLong(to);
+				if (last < first) {
+					return null;
+				}
+				if (first < size) {
+					ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+				}
+			} catch (NumberFormatException e) {
+				return null; // too large to be a position
+			}
+		}
+		return any ? ranges : null;
+	}
+
+	private static boolean isNumber(String s) {
+		if (s.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
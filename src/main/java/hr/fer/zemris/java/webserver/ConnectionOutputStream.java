@@ -0,0 +1,200 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// output of a blocking connection: header and small writes are collected in a pooled buffer and sent
+// to the socket when the buffer is full or on flush, so a page made of many small writes is sent
+// in a few packets instead of one per write
+// buffer is taken from the pool on first write and returned on flush, idle connections don't hold one
+// files are sent with transferTo (sendfile) from the page cache straight to the socket, mapped
+// buffers with channel writes
+public class ConnectionOutputStream extends OutputStream implements FileSender {
+
+	// largest piece of a file (or mapped buffer) sent at once, write timeout applies to each piece
+	private static final long TRANSFER_CHUNK = 64 * 1024;
+
+	private OutputStream out;
+	// channel of the same socket, null if the socket has none
+	private WritableByteChannel channel;
+	private BufferPool pool;
+	private ByteBuffer buffer;
+	// write blocked for longer than writeTimeout (client not reading) triggers onStall
+	private TimingWheel timeouts;
+	private long writeTimeout;
+	private Runnable onStall;
+
+	public ConnectionOutputStream(OutputStream out, BufferPool pool) {
+		this(out, null, pool);
+	}
+
+	public ConnectionOutputStream(OutputStream out, WritableByteChannel channel, BufferPool pool) {
+		this.out = out;
+		this.channel = channel;
+		this.pool = pool;
+	}
+
+	public void setWriteTimeout(TimingWheel timeouts, long writeTimeout, Runnable onStall) {
+		this.timeouts = timeouts;
+		this.writeTimeout = writeTimeout;
+		this.onStall = onStall;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (buffer == null) {
+			buffer = pool.acquire();
+		} else if (!buffer.hasRemaining()) {
+			writeBuffer();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len >= pool.getBufferSize()) {
+			// large writes go straight to the socket, copying them would not save anything
+			// they are split so that the write timeout applies to every piece, not to the whole write
+			writeBuffer();
+			while (len > 0) {
+				int count = Math.min(len, pool.getBufferSize());
+				writeOut(b, off, count);
+				off += count;
+				len -= count;
+			}
+			return;
+		}
+		if (buffer == null) {
+			buffer = pool.acquire();
+		} else if (len > buffer.remaining()) {
+			writeBuffer();
+		}
+		buffer.put(b, off, len);
+	}
+
+	private void writeBuffer() throws IOException {
+		if (buffer != null && buffer.position() > 0) {
+			writeOut(buffer.array(), buffer.arrayOffset(), buffer.position());
+			buffer.clear();
+		}
+	}
+
+	@Override
+	public void sendFile(FileChannel file, long position, long count) throws IOException {
+		try (file) {
+			if (channel == null) {
+				// no channel to transfer to, file is copied through the buffer
+				while (count > 0) {
+					if (buffer == null) {
+						buffer = pool.acquire();
+					} else if (!buffer.hasRemaining()) {
+						writeBuffer();
+					}
+					int limit = buffer.limit();
+					buffer.limit((int) Math.min(limit, buffer.position() + count));
+					int read = file.read(buffer, position);
+					buffer.limit(limit);
+					if (read < 0) {
+						throw new EOFException("File is shorter than expected.");
+					}
+					position += read;
+					count -= read;
+				}
+				return;
+			}
+			// bytes written before (header) must reach the socket first
+			writeBuffer();
+			while (count > 0) {
+				long sent;
+				TimingWheel.Timeout stall = timeouts == null ? null : timeouts.schedule(writeTimeout, onStall);
+				try {
+					sent = file.transferTo(position, Math.min(count, TRANSFER_CHUNK), channel);
+				} finally {
+					if (stall != null) {
+						stall.cancel();
+					}
+				}
+				if (sent <= 0) {
+					// blocking socket always takes something, so the file must have been truncated
+					throw new EOFException("File is shorter than expected.");
+				}
+				position += sent;
+				count -= sent;
+			}
+		}
+	}
+
+	@Override
+	public void sendBuffer(ByteBuffer source, Runnable release) throws IOException {
+		try {
+			if (channel == null) {
+				while (source.hasRemaining()) {
+					if (buffer == null) {
+						buffer = pool.acquire();
+					} else if (!buffer.hasRemaining()) {
+						writeBuffer();
+					}
+					int count = Math.min(source.remaining(), buffer.remaining());
+					buffer.put(source.slice().limit(count));
+					source.position(source.position() + count);
+				}
+				return;
+			}
+			writeBuffer();
+			while (source.hasRemaining()) {
+				ByteBuffer piece = source.duplicate();
+				piece.limit((int) Math.min(source.limit(), source.position() + TRANSFER_CHUNK));
+				TimingWheel.Timeout stall = timeouts == null ? null : timeouts.schedule(writeTimeout, onStall);
+				try {
+					while (piece.hasRemaining()) {
+						channel.write(piece);
+					}
+				} finally {
+					if (stall != null) {
+						stall.cancel();
+					}
+				}
+				source.position(piece.position());
+			}
+		} finally {
+			release.run();
+		}
+	}
+
+	private void writeOut(byte[] b, int off, int len) throws IOException {
+		if (timeouts == null) {
+			out.write(b, off, len);
+			return;
+		}
+		TimingWheel.Timeout stall = timeouts.schedule(writeTimeout, onStall);
+		try {
+			out.write(b, off, len);
+		} finally {
+			stall.cancel();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		try {
+			writeBuffer();
+			out.flush();
+		} finally {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package hr.fer.zemris.java.webserver;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// watches document root (with all its subdirectories) for changed files, so caches of file
+// content and metadata can drop what is stale; one watcher is shared by all of them
+// listeners get normalized path of a changed file or directory, or null when events were lost
+// (then anything may have changed)
+public class DocumentRootWatcher {
+
+	private Path root;
+	private WatchService watchService;
+	private List<Consumer<Path>> listeners = new CopyOnWriteArrayList<Consumer<Path>>();
+	private Thread thread;
+
+	public DocumentRootWatcher(Path root) throws IOException {
+		this.root = root.normalize();
+		this.watchService = root.getFileSystem().newWatchService();
+		registerAll(this.root);
+	}
+
+	public void addListener(Consumer<Path> listener) {
+		listeners.add(listener);
+	}
+
+	public void start() {
+		thread = new Thread(this::run, "document-root-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		try {
+			watchService.close();
+		} catch (IOException ignorable) {}
+	}
+
+	private void registerAll(Path directory) throws IOException {
+		try (Stream<Path> directories = Files.walk(directory)) {
+			for (Path dir : (Iterable<Path>) directories.filter(Files::isDirectory)::iterator) {
+				dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+			}
+		}
+	}
+
+	private void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Path directory = ((Path) key.watchable()).normalize();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					notifyListeners(null);
+					continue;
+				}
+				Path changed = directory.resolve((Path) event.context()).normalize();
+				if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+					// new directories are watched too, files could be created in them before
+					// registration, so everything below them is reported as changed
+					try {
+						registerAll(changed);
+					} catch (IOException e) {
+						System.out.println("Error while watching directory " + changed + ".");
+					}
+				}
+				notifyListeners(changed);
+			}
+			key.reset();
+		}
+	}
+
+	private void notifyListeners(Path changed) {
+		for (Consumer<Path> listener : listeners) {
+			listener.accept(changed);
+		}
+	}
+}
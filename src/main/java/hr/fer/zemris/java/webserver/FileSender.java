@@ -0,0 +1,15 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// output stream which can send part of a file to the client without copying it through the heap
+public interface FileSender {
+	// takes over the file channel, it is closed once the region is sent (or sending fails)
+	void sendFile(FileChannel file, long position, long count) throws IOException;
+
+	// sends the remaining bytes of the buffer (e.g. view of a mapped file) without copying them,
+	// release runs once the buffer is no longer used (also if sending fails)
+	void sendBuffer(ByteBuffer buffer, Runnable release) throws IOException;
+}
@@ -0,0 +1,295 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import hr.fer.zemris.java.webserver.BodyDecoder.InvalidBodyException;
+
+// streaming parsers of form bodies: both read the body through a fixed buffer, so a body is never held
+// in memory as a whole; files of a multipart body are written to temporary files once they get large
+public class FormParser {
+
+	// part header lines (Content-Disposition, Content-Type) must fit into the buffer
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_PARTS = 1000;
+
+	// application/x-www-form-urlencoded body (name1=value1&name2=value2, percent-encoded UTF-8 with '+'
+	// for space) is decoded into parameters; it is kept in memory, so it may take at most maxSize bytes
+	public static void parseUrlEncoded(InputStream body, Map<String, String> parameters, int maxSize) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ByteArrayOutputStream token = new ByteArrayOutputStream();
+		String name = null;
+		long total = 0;
+		// pending percent escape: how many hex digits are still expected and the value so far
+		int escapeDigits = 0;
+		int escape = 0;
+		int read;
+		while ((read = body.read(buffer)) >= 0) {
+			total += read;
+			if (total > maxSize) {
+				throw new InvalidBodyException(413, "Payload Too Large");
+			}
+			for (int i = 0; i < read; i++) {
+				byte c = buffer[i];
+				if (escapeDigits > 0) {
+					int digit = Character.digit(c, 16);
+					if (digit < 0) {
+						throw new InvalidBodyException(400, "Bad Request");
+					}
+					escape = escape * 16 + digit;
+					if (--escapeDigits == 0) {
+						token.write(escape);
+					}
+				} else if (c == '%') {
+					escapeDigits = 2;
+					escape = 0;
+				} else if (c == '+') {
+					token.write(' ');
+				} else if (c == '=' && name == null) {
+					name = token.toString(StandardCharsets.UTF_8);
+					token.reset();
+				} else if (c == '&') {
+					addParameter(parameters, name, token);
+					name = null;
+				} else {
+					token.write(c);
+				}
+			}
+		}
+		if (escapeDigits > 0) {
+			throw new InvalidBodyException(400, "Bad Request");
+		}
+		addParameter(parameters, name, token);
+	}
+
+	// pair without '=' is a parameter with empty value, empty pairs (a&&b) are skipped
+	private static void addParameter(Map<String, String> parameters, String name, ByteArrayOutputStream token) {
+		String text = token.toString(StandardCharsets.UTF_8);
+		token.reset();
+		if (name == null) {
+			if (!text.isEmpty()) {
+				parameters.put(text, "");
+			}
+		} else {
+			parameters.put(name, text);
+		}
+	}
+
+	// boundary parameter of a multipart content type, null if there is none
+	public static String boundary(String contentType) {
+		for (String parameter : contentType.split(";")) {
+			String[] pair = parameter.trim().split("=", 2);
+			if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("boundary")) {
+				String boundary = unquote(pair[1].trim());
+				return boundary.isEmpty() ? null : boundary;
+			}
+		}
+		return null;
+	}
+
+	private static String unquote(String value) {
+		if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+			return value.substring(1, value.length() - 1);
+		}
+		return value;
+	}
+
+	// multipart/form-data body is split into parts; content of a part is searched for the delimiter
+	// (CRLF, "--" and the boundary) while it is copied, only a delimiter's length of it waits in the buffer
+	// parts received before an error are deleted
+	public static List<FormPart> parseMultipart(InputStream body, String boundary, int memoryThreshold,
+			Path temporaryDirectory) throws IOException {
+		List<FormPart> parts = new ArrayList<FormPart>();
+		try {
+			new MultipartReader(body, boundary).read(parts, memoryThreshold, temporaryDirectory);
+		} catch (IOException | RuntimeException e) {
+			parts.forEach(FormPart::delete);
+			throw e;
+		}
+		return parts;
+	}
+
+	private static class MultipartReader {
+		private InputStream body;
+		private byte[] delimiter;
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private int position;
+		private int limit;
+
+		private MultipartReader(InputStream body, String boundary) {
+			this.body = body;
+			this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+			// body starts with the delimiter without its line end
+			buffer[0] = '\r';
+			buffer[1] = '\n';
+			limit = 2;
+		}
+
+		private void read(List<FormPart> parts, int memoryThreshold, Path temporaryDirectory) throws IOException {
+			if (delimiter.length > BUFFER_SIZE / 4) {
+				throw new InvalidBodyException(400, "Bad Request");
+			}
+			// preamble before the first delimiter is skipped, as if it was content of no part
+			FormPart part = null;
+			while (true) {
+				int found = indexOfDelimiter();
+				if (found < 0) {
+					// content up to a possible start of the delimiter is known to belong to the part
+					int safe = Math.max(position, limit - delimiter.length + 1);
+					if (part != null) {
+						write(part, safe - position, memoryThreshold);
+					}
+					position = safe;
+					if (!fill()) {
+						throw new InvalidBodyException(400, "Bad Request");
+					}
+					continue;
+				}
+				if (part != null) {
+					write(part, found - position, memoryThreshold);
+					part.finish();
+				}
+				position = found + delimiter.length;
+				require(2);
+				if (buffer[position] == '-' && buffer[position + 1] == '-') {
+					// close delimiter, epilogue is read and ignored
+					while (body.read(buffer) >= 0) {
+						// nothing to do
+					}
+					return;
+				}
+				skipLine();
+				if (parts.size() == MAX_PARTS) {
+					throw new InvalidBodyException(413, "Payload Too Large");
+				}
+				part = readPartHeader(memoryThreshold, temporaryDirectory);
+				parts.add(part);
+			}
+		}
+
+		// fields become parameters, so they are kept in memory: a field larger than memoryThreshold is
+		// rejected (as a too large urlencoded form is), only files go to temporary files
+		private void write(FormPart part, int length, int memoryThreshold) throws IOException {
+			if (part.getFileName() == null && part.getSize() + length > memoryThreshold) {
+				throw new InvalidBodyException(413, "Payload Too Large");
+			}
+			part.write(buffer, position, length);
+		}
+
+		// headers of a part end with an empty line, only Content-Disposition and Content-Type are used
+		private FormPart readPartHeader(int memoryThreshold, Path temporaryDirectory) throws IOException {
+			String name = null;
+			String fileName = null;
+			String contentType = null;
+			while (true) {
+				String line = readLine();
+				if (line.isEmpty()) {
+					break;
+				}
+				int colon = line.indexOf(':');
+				if (colon < 0) {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+				String headerName = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (headerName.equalsIgnoreCase("Content-Type")) {
+					contentType = value;
+				} else if (headerName.equalsIgnoreCase("Content-Disposition")) {
+					for (String parameter : value.split(";")) {
+						String[] pair = parameter.trim().split("=", 2);
+						if (pair.length != 2) {
+							continue;
+						}
+						if (pair[0].trim().equalsIgnoreCase("name")) {
+							name = unquote(pair[1].trim());
+						} else if (pair[0].trim().equalsIgnoreCase("filename")) {
+							fileName = unquote(pair[1].trim());
+						}
+					}
+				}
+			}
+			return new FormPart(name, fileName, contentType, memoryThreshold, temporaryDirectory);
+		}
+
+		// line ending with CRLF, header values are UTF-8 (file names sent by browsers are)
+		private String readLine() throws IOException {
+			int end;
+			while ((end = indexOfLineEnd()) < 0) {
+				if (position == 0 && limit == buffer.length) {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+				if (!fill()) {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+			}
+			String line = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+			position = end + 2;
+			return line;
+		}
+
+		// rest of the delimiter line: optional whitespace (transport padding) and CRLF
+		private void skipLine() throws IOException {
+			String rest = readLine();
+			if (!rest.isBlank()) {
+				throw new InvalidBodyException(400, "Bad Request");
+			}
+		}
+
+		private int indexOfLineEnd() {
+			for (int i = position; i < limit - 1; i++) {
+				if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private int indexOfDelimiter() {
+			byte first = delimiter[0];
+			int last = limit - delimiter.length;
+			outer:
+			for (int i = position; i <= last; i++) {
+				if (buffer[i] != first) {
+					continue;
+				}
+				for (int j = 1; j < delimiter.length; j++) {
+					if (buffer[i + j] != delimiter[j]) {
+						continue outer;
+					}
+				}
+				return i;
+			}
+			return -1;
+		}
+
+		private void require(int count) throws IOException {
+			while (limit - position < count) {
+				if (!fill()) {
+					throw new InvalidBodyException(400, "Bad Request");
+				}
+			}
+		}
+
+		// unread bytes are moved to the start of the buffer and more are read after them,
+		// false at the end of the body
+		private boolean fill() throws IOException {
+			if (position > 0) {
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				limit -= position;
+				position = 0;
+			}
+			int read = body.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				return false;
+			}
+			limit += read;
+			return true;
+		}
+	}
+}
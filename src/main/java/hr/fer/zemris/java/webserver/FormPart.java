@@ -0,0 +1,118 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// part of a multipart/form-data body (a form field or an uploaded file); content is kept in memory
+// up to memoryThreshold bytes, larger content is written to a temporary file while it is received
+// temporary file is deleted when the request is finished, unless the part was moved with saveTo
+public class FormPart {
+
+	private String name;
+	private String fileName;
+	private String contentType;
+	private long size;
+
+	private int memoryThreshold;
+	private Path temporaryDirectory;
+	private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+	private Path file;
+	private OutputStream fileOutput;
+
+	FormPart(String name, String fileName, String contentType, int memoryThreshold, Path temporaryDirectory) {
+		this.name = name;
+		this.fileName = fileName;
+		this.contentType = contentType;
+		this.memoryThreshold = memoryThreshold;
+		this.temporaryDirectory = temporaryDirectory;
+	}
+
+	void write(byte[] data, int offset, int length) throws IOException {
+		if (length == 0) {
+			return;
+		}
+		size += length;
+		if (fileOutput == null && size > memoryThreshold) {
+			file = Files.createTempFile(temporaryDirectory, "upload", ".part");
+			fileOutput = Files.newOutputStream(file);
+			memory.writeTo(fileOutput);
+			memory = null;
+		}
+		if (fileOutput != null) {
+			fileOutput.write(data, offset, length);
+		} else {
+			memory.write(data, offset, length);
+		}
+	}
+
+	// all content is received
+	void finish() throws IOException {
+		if (fileOutput != null) {
+			fileOutput.close();
+		}
+	}
+
+	void delete() {
+		if (fileOutput != null) {
+			try {
+				fileOutput.close();
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				System.out.println("Error while deleting " + file + ".");
+			}
+		}
+	}
+
+	// name of the form field
+	public String getName() {
+		return name;
+	}
+
+	// file name given by the client, null if the part is not a file
+	public String getFileName() {
+		return fileName;
+	}
+
+	// null if the client didn't say it
+	public String getContentType() {
+		return contentType;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public boolean isInMemory() {
+		return file == null;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return file == null ? new ByteArrayInputStream(memory.toByteArray()) : Files.newInputStream(file);
+	}
+
+	// content as UTF-8 text, for fields; only content kept in memory is read this way
+	public String getString() {
+		if (file != null) {
+			throw new IllegalStateException("Part is too large to be read as text.");
+		}
+		return new String(memory.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	// content is written to target (temporary file is moved), so it outlives the request
+	public void saveTo(Path target) throws IOException {
+		if (file == null) {
+			Files.write(target, memory.toByteArray());
+			return;
+		}
+		Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+		file = target;
+		fileOutput = null;
+	}
+}
@@ -0,0 +1,134 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// precompressed copies of static files (index.html -> index.html.gz), served to clients which accept gzip
+// instead of the original, so nothing is compressed while serving
+// sidecar older than its file is stale and never served, generate() replaces it
+public class GzipSidecars {
+
+	// key in mime.properties listing mime types worth compressing, separated by spaces or commas
+	public static final String COMPRESSIBLE_KEY = "compressible.types";
+
+	private static final String SUFFIX = ".gz";
+
+	// sidecar of the file if it exists, is readable and not older than the file, null otherwise
+	public static Path find(Path file) {
+		Path sidecar = file.resolveSibling(file.getFileName() + SUFFIX);
+		try {
+			if (!Files.isRegularFile(sidecar) || !Files.isReadable(sidecar)) {
+				return null;
+			}
+			if (Files.getLastModifiedTime(sidecar).compareTo(Files.getLastModifiedTime(file)) < 0) {
+				return null;
+			}
+			return sidecar;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// file whose sidecar this is, null if path is not a sidecar
+	public static Path original(Path path) {
+		String name = path.getFileName() == null ? "" : path.getFileName().toString();
+		if (!name.endsWith(SUFFIX) || name.length() == SUFFIX.length()) {
+			return null;
+		}
+		return path.resolveSibling(name.substring(0, name.length() - SUFFIX.length()));
+	}
+
+	public static Set<String> compressibleTypes(Properties mimeConfig) {
+		Set<String> types = new HashSet<String>();
+		for (String type : mimeConfig.getProperty(COMPRESSIBLE_KEY, "").split("[\\s,]+")) {
+			if (!type.isEmpty()) {
+				types.add(type);
+			}
+		}
+		return types;
+	}
+
+	// creates missing and stale sidecars for files with compressible mime types below documentRoot,
+	// a sidecar is kept only if it is smaller than the file; returns number of created sidecars
+	public static int generate(Path documentRoot, Map<String, String> mimeTypes, Set<String> compressible) throws IOException {
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(documentRoot)) {
+			files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		int created = 0;
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			String extension = name.substring(name.lastIndexOf('.') + 1);
+			if (name.endsWith(SUFFIX) || !compressible.contains(mimeTypes.get(extension)) || find(file) != null) {
+				continue;
+			}
+			if (compress(file)) {
+				created++;
+			}
+		}
+		return created;
+	}
+
+	private static boolean compress(Path file) throws IOException {
+		Path sidecar = file.resolveSibling(file.getFileName() + SUFFIX);
+		// written next to the file and renamed, so a half written sidecar is never served
+		Path temp = Files.createTempFile(file.getParent(), ".gzip", ".tmp");
+		try {
+			try (InputStream in = Files.newInputStream(file);
+					OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), 16384) {
+						{
+							def.setLevel(Deflater.BEST_COMPRESSION);
+						}
+					}) {
+				in.transferTo(out);
+			}
+			if (Files.size(temp) >= Files.size(file)) {
+				return false;
+			}
+			Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	// offline pass: java hr.fer.zemris.java.webserver.GzipSidecars <documentRoot> <mime.properties>
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.println("Expected document root and mime configuration file.");
+			return;
+		}
+		Properties prop = new Properties();
+		try (InputStream in = new FileInputStream(args[1])) {
+			prop.load(in);
+		} catch (IOException e) {
+			System.out.println("Error while reading mime configuration file.");
+			return;
+		}
+		Map<String, String> mimeTypes = new HashMap<String, String>();
+		for (String key : prop.stringPropertyNames()) {
+			mimeTypes.put(key, prop.getProperty(key).trim());
+		}
+		try {
+			int created = generate(Path.of(args[0]), mimeTypes, compressibleTypes(prop));
+			System.out.println("Created " + created + " gzip sidecar files.");
+		} catch (IOException e) {
+			System.out.println("Error while creating gzip sidecar files.");
+		}
+	}
+}
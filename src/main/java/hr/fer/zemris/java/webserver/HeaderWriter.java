@@ -0,0 +1,182 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// response header appended straight into a byte array: status lines, header names and content types are
+// encoded once and copied, values are appended char by char (ISO-8859-1, as they are sent), so writing
+// a header builds no Strings
+class HeaderWriter {
+
+	static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+	static final byte[] SET_COOKIE = ascii("Set-Cookie: ");
+	static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+	static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+	static final byte[] CLOSE = ascii("Connection: close\r\n");
+
+	private static final byte[] HTTP_VERSION = ascii("HTTP/1.1 ");
+	private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+	private static final byte[] CHARSET = ascii("; charset=");
+	private static final byte[] CRLF = ascii("\r\n");
+
+	// status lines with the usual reason phrase, e.g. "HTTP/1.1 404 Not Found\r\n"
+	private static final String[] REASONS = new String[600];
+	private static final byte[][] STATUS_LINES = new byte[600][];
+
+	// names and content types come from workers too, so only so many of them are kept
+	private static final int MAX_CACHED = 256;
+	private static final ConcurrentHashMap<String, byte[]> NAMES = new ConcurrentHashMap<String, byte[]>();
+	// content type line by mime type and encoding ("" for types without charset)
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>> CONTENT_TYPES =
+			new ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>>();
+
+	static {
+		status(200, "OK");
+		status(204, "No Content");
+		status(206, "Partial Content");
+		status(301, "Moved Permanently");
+		status(302, "Found");
+		status(304, "Not Modified");
+		status(400, "Bad Request");
+		status(403, "Forbidden");
+		status(404, "Not Found");
+		status(413, "Payload Too Large");
+		status(416, "Range Not Satisfiable");
+		status(431, "Request Header Fields Too Large");
+		status(500, "Internal Server Error");
+		status(503, "Service Unavailable");
+		for (String name : new String[] {"Accept-Ranges", "Cache-Control", "Content-Encoding", "Content-Range",
+				"ETag", "Last-Modified", "Vary"}) {
+			NAMES.put(name, ascii(name + ": "));
+		}
+	}
+
+	private byte[] buffer;
+	private int size;
+
+	public HeaderWriter() {
+		this.buffer = new byte[256];
+	}
+
+	private static void status(int code, String reason) {
+		REASONS[code] = reason;
+		STATUS_LINES[code] = ascii("HTTP/1.1 " + code + " " + reason + "\r\n");
+	}
+
+	private static byte[] ascii(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	// empties the writer, so it can be used for the next header
+	HeaderWriter reset() {
+		size = 0;
+		return this;
+	}
+
+	public HeaderWriter statusLine(int code, String reason) {
+		if (code >= 0 && code < STATUS_LINES.length && STATUS_LINES[code] != null && REASONS[code].equals(reason)) {
+			return append(STATUS_LINES[code]);
+		}
+		append(HTTP_VERSION).number(code).text(" ").text(reason);
+		return append(CRLF);
+	}
+
+	// charset is left out if encoding is null
+	public HeaderWriter contentType(String mimeType, String encoding) {
+		String key = encoding == null ? "" : encoding;
+		ConcurrentHashMap<String, byte[]> encodings = CONTENT_TYPES.get(mimeType);
+		byte[] line = encodings == null ? null : encodings.get(key);
+		if (line != null) {
+			return append(line);
+		}
+		int start = size;
+		append(CONTENT_TYPE).text(mimeType);
+		if (encoding != null) {
+			append(CHARSET).text(encoding);
+		}
+		append(CRLF);
+		if (CONTENT_TYPES.size() < MAX_CACHED) {
+			encodings = CONTENT_TYPES.computeIfAbsent(mimeType, m -> new ConcurrentHashMap<String, byte[]>());
+			if (encodings.size() < MAX_CACHED) {
+				encodings.putIfAbsent(key, Arrays.copyOfRange(buffer, start, size));
+			}
+		}
+		return this;
+	}
+
+	public HeaderWriter header(String name, String value) {
+		byte[] encodedName = NAMES.get(name);
+		if (encodedName == null) {
+			if (NAMES.size() >= MAX_CACHED) {
+				return text(name).text(": ").text(value).append(CRLF);
+			}
+			encodedName = NAMES.computeIfAbsent(name, n -> ascii(n + ": "));
+		}
+		return append(encodedName).text(value).append(CRLF);
+	}
+
+	// header whose name is already encoded (with the colon), e.g. CONTENT_LENGTH
+	public HeaderWriter header(byte[] encodedName, long value) {
+		return append(encodedName).number(value).append(CRLF);
+	}
+
+	public HeaderWriter append(byte[] data) {
+		ensureCapacity(data.length);
+		System.arraycopy(data, 0, buffer, size, data.length);
+		size += data.length;
+		return this;
+	}
+
+	// characters outside of ISO-8859-1 become '?', as String.getBytes would encode them
+	public HeaderWriter text(String text) {
+		int length = text.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			buffer[size++] = c <= 0xFF ? (byte) c : (byte) '?';
+		}
+		return this;
+	}
+
+	public HeaderWriter number(long value) {
+		ensureCapacity(20);
+		if (value < 0) {
+			buffer[size++] = '-';
+		} else {
+			value = -value; // negative values reach Long.MIN_VALUE, positive ones don't
+		}
+		int start = size;
+		do {
+			buffer[size++] = (byte) ('0' - value % 10);
+			value /= 10;
+		} while (value != 0);
+		// digits were written from the last one
+		for (int i = start, j = size - 1; i < j; i++, j--) {
+			byte digit = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = digit;
+		}
+		return this;
+	}
+
+	public HeaderWriter crlf() {
+		return append(CRLF);
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, size);
+	}
+
+	public void writeTo(OutputStream outputStream) throws IOException {
+		outputStream.write(buffer, 0, size);
+	}
+
+	private void ensureCapacity(int more) {
+		if (size + more > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + more));
+		}
+	}
+}
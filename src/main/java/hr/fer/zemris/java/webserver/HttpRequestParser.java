@@ -0,0 +1,465 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// incremental parser of HTTP request headers working directly on bytes received from the client
+// one instance is used for the whole connection: bytes are read into its buffer, parse() continues
+// where it stopped last time and nextRequest() keeps bytes of the next (pipelined) request
+// request line and headers are exposed as slices of the buffer, Strings are created only when asked for
+public class HttpRequestParser {
+
+	public enum Status {
+		INCOMPLETE, COMPLETE, MALFORMED, TOO_LARGE
+	}
+
+	public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+	private static final int MAX_HEADERS = 64;
+
+	// states of the parser
+	private static final int REQUEST_START = 0;
+	private static final int METHOD = 1;
+	private static final int TARGET = 2;
+	private static final int VERSION = 3;
+	private static final int REQUEST_LINE_LF = 4;
+	private static final int HEADER_START = 5;
+	private static final int HEADER_NAME = 6;
+	private static final int HEADER_VALUE_START = 7;
+	private static final int HEADER_VALUE = 8;
+	private static final int HEADER_LF = 9;
+	private static final int END_LF = 10;
+	private static final int DONE = 11;
+
+	private byte[] buffer;
+	private ByteBuffer channelBuffer;
+	private int limit = 0;
+	private int position = 0;
+	private int state = REQUEST_START;
+	private Status status = Status.INCOMPLETE;
+
+	private int mark;
+	private int valueEnd;
+	private int queryStart;
+
+	private Slice method = new Slice();
+	private Slice path = new Slice();
+	private Slice query = new Slice();
+	private Slice version = new Slice();
+	private Slice[] headerNames = new Slice[MAX_HEADERS];
+	private Slice[] headerValues = new Slice[MAX_HEADERS];
+	private int headerCount = 0;
+
+	public HttpRequestParser() {
+		this(DEFAULT_MAX_HEADER_SIZE);
+	}
+
+	// maxHeaderSize limits request line and all headers together
+	public HttpRequestParser(int maxHeaderSize) {
+		this.buffer = new byte[maxHeaderSize];
+		this.channelBuffer = ByteBuffer.wrap(buffer);
+		for (int i = 0; i < MAX_HEADERS; i++) {
+			headerNames[i] = new Slice();
+			headerValues[i] = new Slice();
+		}
+	}
+
+	// reads available bytes into the buffer, returns -1 at end of stream
+	public int readFrom(InputStream in) throws IOException {
+		if (limit == buffer.length) {
+			return 0;
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read > 0) {
+			limit += read;
+		}
+		return read;
+	}
+
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		if (limit == buffer.length) {
+			return 0;
+		}
+		channelBuffer.limit(buffer.length).position(limit);
+		int read = channel.read(channelBuffer);
+		if (read > 0) {
+			limit += read;
+		}
+		return read;
+	}
+
+	// appends bytes to the buffer, returns how many fit
+	public int feed(byte[] data, int offset, int length) {
+		int count = Math.min(length, buffer.length - limit);
+		System.arraycopy(data, offset, buffer, limit, count);
+		limit += count;
+		return count;
+	}
+
+	public Status parse() {
+		if (state == DONE || status != Status.INCOMPLETE) {
+			return status;
+		}
+		byte[] b = buffer;
+		while (position < limit) {
+			byte c = b[position];
+			switch (state) {
+			case REQUEST_START:
+				// empty lines before request line are ignored
+				if (c == '\r' || c == '\n') {
+					break;
+				}
+				if (!isTokenChar(c)) {
+					return error(Status.MALFORMED);
+				}
+				mark = position;
+				state = METHOD;
+				break;
+			case METHOD:
+				if (c == ' ') {
+					method.set(mark, position);
+					mark = position + 1;
+					queryStart = -1;
+					state = TARGET;
+				} else if (!isTokenChar(c)) {
+					return error(Status.MALFORMED);
+				}
+				break;
+			case TARGET:
+				if (c == ' ') {
+					if (position == mark) {
+						return error(Status.MALFORMED);
+					}
+					if (queryStart < 0) {
+						path.set(mark, position);
+						query.set(position, position);
+					} else {
+						path.set(mark, queryStart - 1);
+						query.set(queryStart, position);
+					}
+					mark = position + 1;
+					state = VERSION;
+				} else if (c == '?' && queryStart < 0) {
+					queryStart = position + 1;
+				} else if (c <= ' ' || c == 127) {
+					return error(Status.MALFORMED);
+				}
+				break;
+			case VERSION:
+				if (c == '\r' || c == '\n') {
+					if (position == mark) {
+						return error(Status.MALFORMED);
+					}
+					version.set(mark, position);
+					state = c == '\r' ? REQUEST_LINE_LF : HEADER_START;
+				} else if (c <= ' ') {
+					return error(Status.MALFORMED);
+				}
+				break;
+			case REQUEST_LINE_LF:
+			case HEADER_LF:
+				if (c != '\n') {
+					return error(Status.MALFORMED);
+				}
+				state = HEADER_START;
+				break;
+			case HEADER_START:
+				if (c == '\r') {
+					state = END_LF;
+				} else if (c == '\n') {
+					return complete();
+				} else if (isTokenChar(c)) {
+					if (headerCount == MAX_HEADERS) {
+						return error(Status.TOO_LARGE);
+					}
+					mark = position;
+					state = HEADER_NAME;
+				} else {
+					// no whitespace at line start, obsolete line folding is not supported
+					return error(Status.MALFORMED);
+				}
+				break;
+			case HEADER_NAME:
+				if (c == ':') {
+					headerNames[headerCount].set(mark, position);
+					state = HEADER_VALUE_START;
+				} else if (!isTokenChar(c)) {
+					return error(Status.MALFORMED);
+				}
+				break;
+			case HEADER_VALUE_START:
+				if (c == ' ' || c == '\t') {
+					break;
+				}
+				mark = position;
+				valueEnd = position;
+				state = HEADER_VALUE;
+				// current byte is part of the value (or ends it), so it is examined again
+				continue;
+			case HEADER_VALUE:
+				if (c == '\r' || c == '\n') {
+					headerValues[headerCount++].set(mark, valueEnd);
+					state = c == '\r' ? HEADER_LF : HEADER_START;
+				} else if (c != ' ' && c != '\t') {
+					valueEnd = position + 1;
+				}
+				break;
+			case END_LF:
+				if (c != '\n') {
+					return error(Status.MALFORMED);
+				}
+				return complete();
+			}
+			position++;
+		}
+		if (limit == buffer.length) {
+			return error(Status.TOO_LARGE);
+		}
+		return Status.INCOMPLETE;
+	}
+
+	private Status complete() {
+		position++;
+		state = DONE;
+		status = Status.COMPLETE;
+		return status;
+	}
+
+	private Status error(Status error) {
+		status = error;
+		return status;
+	}
+
+	// forgets the parsed request, bytes received after it stay in the buffer
+	// slices of the previous request must not be used after this call
+	// does nothing if the current request is not complete yet
+	public void nextRequest() {
+		if (status != Status.COMPLETE) {
+			return;
+		}
+		int remaining = limit - position;
+		if (remaining > 0) {
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+		}
+		limit = remaining;
+		position = 0;
+		state = REQUEST_START;
+		status = Status.INCOMPLETE;
+		method.clear();
+		path.clear();
+		query.clear();
+		version.clear();
+		for (int i = 0; i < headerCount; i++) {
+			headerNames[i].clear();
+			headerValues[i].clear();
+		}
+		headerCount = 0;
+	}
+
+	// body is decoded straight from the buffer once its request is copied (copyRequest) and nextRequest
+	// called: bytes of the body are removed, bytes after it stay for the next request
+	// returns how many decoded bytes were written into out
+	public int decodeBody(BodyDecoder decoder, byte[] out, int offset, int length) throws BodyDecoder.InvalidBodyException {
+		if (state != REQUEST_START) {
+			throw new IllegalStateException("Header of the next request is being parsed.");
+		}
+		int produced = decoder.decode(buffer, position, limit - position, out, offset, length);
+		position += decoder.consumed();
+		// buffer is compacted only once in a while, a body may be read a few bytes at a time
+		if (position == limit || decoder.isDone() || position > buffer.length / 2) {
+			int remaining = limit - position;
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+			limit = remaining;
+			position = 0;
+		}
+		return produced;
+	}
+
+	// has any byte of the current request been received
+	public boolean hasData() {
+		return limit > 0;
+	}
+
+	// are there bytes after the parsed request, i.e. is another request pipelined behind it
+	public boolean hasPipelinedData() {
+		return status == Status.COMPLETE && limit > position;
+	}
+
+	// parser holding only the current request, so it can be processed while this one parses further
+	public HttpRequestParser copyRequest() {
+		HttpRequestParser copy = new HttpRequestParser(Math.max(position, 1));
+		copy.feed(buffer, 0, position);
+		copy.parse();
+		return copy;
+	}
+
+	public Slice method() {
+		return method;
+	}
+
+	public Slice path() {
+		return path;
+	}
+
+	// part of the request target after '?', empty if there is none
+	public Slice query() {
+		return query;
+	}
+
+	public Slice version() {
+		return version;
+	}
+
+	public int headerCount() {
+		return headerCount;
+	}
+
+	public Slice headerName(int index) {
+		return headerNames[index];
+	}
+
+	public Slice headerValue(int index) {
+		return headerValues[index];
+	}
+
+	// value of the first header with given name (case insensitive), null if there is none
+	public Slice header(String name) {
+		for (int i = 0; i < headerCount; i++) {
+			if (headerNames[i].equalsIgnoreCase(name)) {
+				return headerValues[i];
+			}
+		}
+		return null;
+	}
+
+	private static boolean isTokenChar(byte c) {
+		if (c <= ' ' || c >= 127) {
+			return false;
+		}
+		switch (c) {
+		case '(': case ')': case '<': case '>': case '@': case ',': case ';': case ':':
+		case '\\': case '"': case '/': case '[': case ']': case '?': case '=': case '{': case '}':
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	// part of the parser buffer, String is created (once) only when toString is called
+	public class Slice implements CharSequence {
+		private int start;
+		private int end;
+		private String string;
+
+		private void set(int start, int end) {
+			this.start = start;
+			this.end = end;
+			this.string = null;
+		}
+
+		private void clear() {
+			set(0, 0);
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (buffer[start + index] & 0xFF);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			return toString().substring(from, to);
+		}
+
+		public boolean isEmpty() {
+			return end == start;
+		}
+
+		public int indexOf(char c) {
+			for (int i = start; i < end; i++) {
+				if (buffer[i] == c) {
+					return i - start;
+				}
+			}
+			return -1;
+		}
+
+		// compares with an ASCII string without creating a String from the slice
+		public boolean contentEquals(String other) {
+			if (other.length() != length()) {
+				return false;
+			}
+			for (int i = 0; i < other.length(); i++) {
+				if ((buffer[start + i] & 0xFF) != other.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public boolean equalsIgnoreCase(String other) {
+			if (other.length() != length()) {
+				return false;
+			}
+			for (int i = 0; i < other.length(); i++) {
+				if (toLower(buffer[start + i] & 0xFF) != toLower(other.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// is the token one of the comma separated elements of the value (Connection: keep-alive, Upgrade),
+		// ignoring case and the whitespace around elements
+		public boolean containsToken(String token) {
+			int i = start;
+			while (i <= end) {
+				int comma = i;
+				while (comma < end && buffer[comma] != ',') {
+					comma++;
+				}
+				int from = i;
+				int to = comma;
+				while (from < to && (buffer[from] == ' ' || buffer[from] == '\t')) {
+					from++;
+				}
+				while (to > from && (buffer[to - 1] == ' ' || buffer[to - 1] == '\t')) {
+					to--;
+				}
+				if (to - from == token.length() && regionEqualsIgnoreCase(from, token)) {
+					return true;
+				}
+				i = comma + 1;
+			}
+			return false;
+		}
+
+		private boolean regionEqualsIgnoreCase(int from, String other) {
+			for (int i = 0; i < other.length(); i++) {
+				if (toLower(buffer[from + i] & 0xFF) != toLower(other.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int toLower(int c) {
+			return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+		}
+
+		@Override
+		public String toString() {
+			if (string == null) {
+				string = new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+			}
+			return string;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// memory mappings of large static files shared by all downloads of the same file, so its content is
+// read from the page cache without copies into the heap; keyed by path, a mapping is replaced when
+// file's modification time or size changes
+// mapping is reference counted (cache holds one reference, every download one more) and unmapped
+// when it is evicted (least recently used first, above maxBytes) or invalidated and no download uses it
+public class MappedFileCache {
+
+	private static final Method INVOKE_CLEANER;
+	private static final Object UNSAFE;
+
+	static {
+		// unmapping is not part of the public API, without it mappings are released by the garbage collector
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			invokeCleaner = null;
+			unsafe = null;
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+	}
+
+	private long maxBytes;
+	private long minFileSize;
+	private LinkedHashMap<Path, MappedFile> mappings = new LinkedHashMap<Path, MappedFile>(16, 0.75f, true);
+	private long mappedBytes = 0;
+	private ReentrantLock lock = new ReentrantLock();
+
+	public MappedFileCache(long minFileSize, long maxBytes) {
+		this.minFileSize = minFileSize;
+		this.maxBytes = maxBytes;
+	}
+
+	// is a file of this size served from a mapping
+	public boolean accepts(long size) {
+		return size >= minFileSize && size <= maxBytes && size <= Integer.MAX_VALUE;
+	}
+
+	// mapping of the current version of the file, must be released when it is no longer used
+	public MappedFile acquire(Path path) throws IOException {
+		path = path.normalize();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		long modified = attributes.lastModifiedTime().toMillis();
+		lock.lock();
+		try {
+			MappedFile mapped = mappings.get(path);
+			if (mapped != null && mapped.modified == modified && mapped.size == attributes.size()) {
+				mapped.references.incrementAndGet();
+				return mapped;
+			}
+			if (mapped != null) {
+				remove(path, mapped);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		// mapping is created outside of the lock, the same file may be mapped twice at the same time,
+		// only one of the mappings stays in the cache
+		MappedFile mapped;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			mapped = new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), modified, size);
+		}
+		mapped.references.incrementAndGet();
+		lock.lock();
+		try {
+			MappedFile old = mappings.put(path, mapped);
+			if (old != null) {
+				mappedBytes -= old.size;
+				old.release();
+			}
+			mappedBytes += mapped.size;
+			Iterator<MappedFile> lru = mappings.values().iterator();
+			while (mappedBytes > maxBytes && lru.hasNext()) {
+				MappedFile evicted = lru.next();
+				if (evicted == mapped) {
+					continue;
+				}
+				lru.remove();
+				mappedBytes -= evicted.size;
+				evicted.release();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return mapped;
+	}
+
+	// drops mappings of the path and everything below it, null drops all
+	public void invalidate(Path changed) {
+		lock.lock();
+		try {
+			Iterator<Map.Entry<Path, MappedFile>> it = mappings.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Path, MappedFile> entry = it.next();
+				if (changed == null || entry.getKey().startsWith(changed)) {
+					it.remove();
+					mappedBytes -= entry.getValue().size;
+					entry.getValue().release();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void remove(Path path, MappedFile mapped) {
+		mappings.remove(path);
+		mappedBytes -= mapped.size;
+		mapped.release();
+	}
+
+	public static class MappedFile {
+		private MappedByteBuffer buffer;
+		private long modified;
+		private long size;
+		// starts with the reference held by the cache
+		private AtomicInteger references = new AtomicInteger(1);
+
+		private MappedFile(MappedByteBuffer buffer, long modified, long size) {
+			this.buffer = buffer;
+			this.modified = modified;
+			this.size = size;
+		}
+
+		public long size() {
+			return size;
+		}
+
+		// independent view of the whole file for one download
+		public ByteBuffer buffer() {
+			return buffer.duplicate();
+		}
+
+		// buffers obtained from this mapping must not be used after release
+		public void release() {
+			if (references.decrementAndGet() == 0 && INVOKE_CLEANER != null) {
+				try {
+					INVOKE_CLEANER.invoke(UNSAFE, buffer);
+				} catch (ReflectiveOperationException ignorable) {}
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// body of a request on a blocking connection: raw bytes are read through the connection's parser, so
+// bytes after the body stay there for the next request, and decoded while they are read
+public class RequestBody extends InputStream {
+
+	private HttpRequestParser connection;
+	private InputStream in;
+	private BodyDecoder decoder;
+	private byte[] single = new byte[1];
+
+	// connection is the parser of the connection, its request already copied away (see decodeBody)
+	public RequestBody(HttpRequestParser connection, InputStream in, BodyDecoder decoder) {
+		this.connection = connection;
+		this.in = in;
+		this.decoder = decoder;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (!decoder.isDone()) {
+			int count = connection.decodeBody(decoder, b, off, len);
+			if (count > 0) {
+				return count;
+			}
+			// everything in the parser is decoded, body needs more bytes from the client
+			if (!decoder.isDone() && connection.readFrom(in) < 0) {
+				throw new EOFException("Connection closed before the end of request body.");
+			}
+		}
+		return -1;
+	}
+
+	// rest of the body is read and thrown away, so the next request on the connection can be read
+	@Override
+	public void close() throws IOException {
+		byte[] skipped = new byte[4096];
+		while (read(skipped, 0, skipped.length) >= 0) {
+			// nothing to do
+		}
+	}
+}
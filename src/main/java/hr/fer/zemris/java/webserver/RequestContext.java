@@ -1,36 +1,102 @@
 package hr.fer.zemris.java.webserver;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class RequestContext {
 	
+	private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+	// chunk size line and the line end after the data, a chunk with them fits in one output buffer
+	private static final int CHUNK_FRAMING = 16;
+	// gzip member header: magic, deflate method, no flags, no modification time, unknown OS
+	private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0};
+	
+	// size of the buffer text is encoded into
+	private static final int TEXT_BUFFER_SIZE = 1024;
+	private static final ConcurrentHashMap<String, Charset> CHARSETS = new ConcurrentHashMap<String, Charset>();
+	
 	private OutputStream outputStream;
 	private Charset charset;
+	// encoded text, used by every text write of the response
+	private byte[] encoded;
+	// for charsets which are not encoded by hand: encodedBuffer wraps encoded, text waits in decoded
+	private CharsetEncoder encoder;
+	private ByteBuffer encodedBuffer;
+	private CharBuffer decoded;
 	
 	private String encoding = "UTF-8";
 	private int statusCode = 200;
 	private String statusText = "OK";
 	private String mimeType = "text/html";
 	private Long contentLength = null;
+	// additional headers describing the body (Accept-Ranges, Content-Range, ...), in the order they were set
+	private Map<String, String> headers = new LinkedHashMap<String, String>();
 	private String SID;
 	
 	private Map<String, String> parameters;
 	private Map<String, String> temporaryParameters = new HashMap<String, String>();
 	private Map<String, String> persistentParameters;
 	private List<RCCookie> outputCookies;
+	// body of the request, null if it has none; parts of a multipart form body
+	private InputStream requestBody;
+	private List<FormPart> parts = Collections.emptyList();
 	
 	private boolean headerGenerated = false;
 	
+	// set by the server for persistent connections, standalone contexts always close
+	private boolean keepAlive = false;
+	private boolean http11 = false;
+	private boolean chunked = false;
+	private boolean finished = false;
+	// small writes of a chunked body are collected into chunks of chunkSize bytes, so a page written
+	// piece by piece doesn't send a chunk (and its framing) for every piece
+	private int chunkSize = 16384 - CHUNK_FRAMING;
+	private byte[] chunk;
+	private int chunkLength;
+	// size line of the chunk being sent (up to 16 hex digits and CRLF), kept like the chunk itself
+	private byte[] chunkSizeLine;
+	// sent after the last chunk, dropped if the body is not chunked
+	private Map<String, String> trailers;
+	
 	private IDispatcher dispatcher;
 	
+	// on-the-fly compression, set by the server for dynamic responses; coding is null if the client
+	// accepts no compression
+	private ResponseCompression compression;
+	private String contentCoding;
+	private Deflater deflater;
+	private byte[] deflated;
+	// gzip checksum of the uncompressed body
+	private CRC32 crc;
+	// body held back until it is known whether it reaches the minimum size for compression
+	private ByteArrayOutputStream pending;
+	
+	// index of the document root, null if asset urls are not fingerprinted
+	private WebrootIndex assetIndex;
+	
+	private HeaderWriter headerWriter;
+	
 	public RequestContext(OutputStream outputStream, Map<String, String> parameters, 
 			Map<String, String> persistentParameters, List<RCCookie> outputCookies) {
 		this.outputStream = outputStream;
@@ -49,6 +115,41 @@ public class RequestContext {
 	}
 	
 	
+	// context of a finished response is prepared for the next request on the same connection (or thread):
+	// buffers, the encoder and the maps stay, everything describing the response starts as in a new context;
+	// the server empties parameters, temporary parameters and cookies, they are its maps
+	void reset(OutputStream outputStream, Map<String, String> persistentParameters, String SID) {
+		if (deflater != null) {
+			// response failed before it was finished
+			compression.release(contentCoding, deflater);
+			deflater = null;
+		}
+		this.outputStream = outputStream;
+		this.persistentParameters = persistentParameters;
+		this.SID = SID;
+		charset = null;
+		encoding = "UTF-8";
+		statusCode = 200;
+		statusText = "OK";
+		mimeType = "text/html";
+		contentLength = null;
+		headers.clear();
+		headerGenerated = false;
+		keepAlive = false;
+		http11 = false;
+		chunked = false;
+		finished = false;
+		chunkLength = 0;
+		trailers = null;
+		compression = null;
+		contentCoding = null;
+		crc = null;
+		pending = null;
+		assetIndex = null;
+		requestBody = null;
+		parts = Collections.emptyList();
+	}
+	
 	public void setEncoding(String encoding) {
 		if (headerGenerated) throw new RuntimeException("Cannot change now.");
 		this.encoding = encoding;
@@ -74,6 +175,22 @@ public class RequestContext {
 		this.contentLength = contentLength;
 	}
 	
+	public void setHeader(String name, String value) {
+		if (headerGenerated) throw new RuntimeException("Cannot change now.");
+		headers.put(name, value);
+	}
+	
+	// trailer is sent after the body, so its value may depend on the body (checksum, processing time);
+	// only chunked bodies have trailers, a worker which relies on them should announce them with
+	// the Trailer header
+	public void setTrailer(String name, String value) {
+		if (finished) throw new RuntimeException("Cannot change now.");
+		if (trailers == null) {
+			trailers = new LinkedHashMap<String, String>();
+		}
+		trailers.put(name, value);
+	}
+	
 	public void addRCCookie(RCCookie cookie) {
 		if (headerGenerated) throw new RuntimeException("Cannot change now.");
 		outputCookies.add(cookie);
@@ -96,6 +213,31 @@ public class RequestContext {
 		return Collections.unmodifiableSet(parameters.keySet());
 	}
 	
+	// body of the request as the client sent it (without transfer coding); form bodies are already read,
+	// their fields are parameters and their files parts
+	public InputStream getRequestBody() {
+		return requestBody == null ? InputStream.nullInputStream() : requestBody;
+	}
+	
+	public List<FormPart> getParts() {
+		return Collections.unmodifiableList(parts);
+	}
+	
+	// first part of a multipart form body with given name, null if there is none
+	public FormPart getPart(String name) {
+		for (FormPart part : parts) {
+			if (name.equals(part.getName())) {
+				return part;
+			}
+		}
+		return null;
+	}
+	
+	void setRequestBody(InputStream requestBody, List<FormPart> parts) {
+		this.requestBody = requestBody;
+		this.parts = parts;
+	}
+	
 	public String getPersistentParameter(String name) {
 		return persistentParameters.get(name);
 	}
@@ -136,15 +278,130 @@ public class RequestContext {
 		return this.dispatcher;
 	}
 	
+	// url of a static file which changes whenever its content changes (/images/a.<hash>.jpg), such url
+	// may be cached by clients forever; the url as it is if the file is not known
+	public String assetUrl(String urlPath) {
+		return assetIndex == null ? urlPath : assetIndex.fingerprint(urlPath);
+	}
+	
+	void setAssetIndex(WebrootIndex assetIndex) {
+		this.assetIndex = assetIndex;
+	}
+	
+	// connection can stay open only if the client can tell where the body ends,
+	// HTTP/1.1 clients get chunked body when content length is not known
+	void setKeepAlive(boolean keepAlive, boolean http11) {
+		if (headerGenerated) throw new RuntimeException("Cannot change now.");
+		this.keepAlive = keepAlive;
+		this.http11 = http11;
+	}
+	
+	// size of the connection's output buffers, chunks are made to fit in them
+	void setBufferSize(int bufferSize) {
+		if (headerGenerated) throw new RuntimeException("Cannot change now.");
+		this.chunkSize = Math.max(bufferSize - CHUNK_FRAMING, 256);
+	}
+	
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+	
+	void setCompression(ResponseCompression compression, String contentCoding) {
+		if (headerGenerated) throw new RuntimeException("Cannot change now.");
+		this.compression = compression;
+		this.contentCoding = contentCoding;
+	}
+	
+	boolean isHeaderGenerated() {
+		return headerGenerated;
+	}
+	
+	// ends the response: sends header if nothing was written and the last chunk if body is chunked
+	void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		try {
+			if (!headerGenerated) {
+				if (contentLength == null) {
+					contentLength = 0L;
+				}
+				createHeader();
+			}
+			if (pending != null) {
+				// body is too small to be worth compressing, it is sent as it is with known length
+				byte[] body = pending.toByteArray();
+				pending = null;
+				contentLength = (long) body.length;
+				createHeader();
+				writeBody(body, 0, body.length);
+			}
+			if (deflater != null) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					writeBody(deflated, 0, deflater.deflate(deflated));
+				}
+				if (crc != null) {
+					writeBody(gzipTrailer(), 0, 8);
+				}
+			}
+			if (chunked) {
+				writeChunk();
+				if (trailers == null) {
+					outputStream.write(LAST_CHUNK);
+				} else {
+					HeaderWriter trailer = headerWriter().text("0").crlf();
+					for (Map.Entry<String, String> entry : trailers.entrySet()) {
+						trailer.header(entry.getKey(), entry.getValue());
+					}
+					trailer.crlf().writeTo(outputStream);
+				}
+			}
+			outputStream.flush();
+		} finally {
+			if (deflater != null) {
+				compression.release(contentCoding, deflater);
+				deflater = null;
+			}
+		}
+	}
+	
+	
+	// sends everything written so far to the client, output is otherwise buffered until the
+	// buffer fills up or the response ends; for workers which produce output over a longer time
+	public void flush() throws IOException {
+		if (!headerGenerated) {
+			startBody();
+		}
+		if (pending != null) {
+			// output produced over a longer time has no known size, so it is compressed
+			startCompressed();
+		}
+		if (deflater != null) {
+			// everything written so far must be decodable by the client
+			int count;
+			do {
+				count = deflater.deflate(deflated, 0, deflated.length, Deflater.SYNC_FLUSH);
+				writeBody(deflated, 0, count);
+			} while (count == deflated.length);
+		}
+		writeChunk();
+		outputStream.flush();
+	}
+	
+	// header writer of the context, emptied for every header it writes
+	private HeaderWriter headerWriter() {
+		if (headerWriter == null) {
+			headerWriter = new HeaderWriter();
+		}
+		return headerWriter.reset();
+	}
 	
 	// ako header nije generiran, generira ga
 	// zatim zapisuje podatke u output stream 
 	// poziva metodu write(byte[] data, int offset, int len)
 	public RequestContext write(byte[] data) throws IOException{
-		if (!headerGenerated) {
-			charset = Charset.forName(encoding);
-			createHeader();
-		}
 		return write(data, 0, data.length);
 	}
 
@@ -152,24 +409,419 @@ public class RequestContext {
 	// zatim zapisuje podatke u output stream
 	public RequestContext write(byte[] data, int offset, int len) throws IOException{
 		if (!headerGenerated) {
-			charset = Charset.forName(encoding);
-			createHeader();
+			startBody();
+		}
+		if (pending != null) {
+			pending.write(data, offset, len);
+			if (pending.size() >= compression.getMinSize()) {
+				startCompressed();
+			}
+			return this;
+		}
+		if (deflater != null) {
+			deflate(data, offset, len);
+			return this;
+		}
+		return writeBody(data, offset, len);
+	}
+
+	// writes bytes of the body as they are sent; chunked body is collected into chunks of chunkSize,
+	// writes at least that large are sent as chunks of their own without copying
+	private RequestContext writeBody(byte[] data, int offset, int len) throws IOException {
+		if (!chunked) {
+			outputStream.write(data, offset, len);
+			return this;
+		}
+		while (len > 0) {
+			if (chunkLength == 0 && len >= chunkSize) {
+				writeChunk(data, offset, len);
+				return this;
+			}
+			if (chunk == null || chunk.length != chunkSize) {
+				chunk = new byte[chunkSize];
+			}
+			int count = Math.min(len, chunkSize - chunkLength);
+			System.arraycopy(data, offset, chunk, chunkLength, count);
+			chunkLength += count;
+			offset += count;
+			len -= count;
+			if (chunkLength == chunkSize) {
+				writeChunk();
+			}
 		}
-		outputStream.write(data, offset, len);
 		return this;
 	}
 
+	// sends the chunk collected so far
+	private void writeChunk() throws IOException {
+		if (chunkLength > 0) {
+			int length = chunkLength;
+			chunkLength = 0;
+			writeChunk(chunk, 0, length);
+		}
+	}
+
+	private void writeChunk(byte[] data, int offset, int len) throws IOException {
+		writeChunkSize(len);
+		outputStream.write(data, offset, len);
+		outputStream.write(CRLF);
+	}
+
+	// size line of a chunk; callers never write an empty chunk, it would end the body
+	private void writeChunkSize(long size) throws IOException {
+		if (chunkSizeLine == null) {
+			chunkSizeLine = new byte[18];
+		}
+		byte[] line = chunkSizeLine;
+		int position = line.length - 2;
+		line[position] = '\r';
+		line[position + 1] = '\n';
+		do {
+			line[--position] = HEX_DIGITS[(int) (size & 0xF)];
+			size >>>= 4;
+		} while (size != 0);
+		outputStream.write(line, position, line.length - position);
+	}
+
+	// writes count bytes of the file starting at position, the file is closed afterwards
+	// connection streams send it straight from the file (sendfile), so it never passes through the heap
+	public RequestContext writeFile(FileChannel file, long position, long count) throws IOException {
+		boolean handedOver = false;
+		try {
+			if (!headerGenerated) {
+				startBody();
+			}
+			if (count == 0) {
+				return this;
+			}
+			if (isCompressing()) {
+				// compressed body passes through the deflater, it can't be sent straight from the file
+				copyFile(file, position, count);
+				return this;
+			}
+			if (chunked) {
+				// chunk collected so far goes first, the file is a chunk of its own
+				writeChunk();
+				writeChunkSize(count);
+			}
+			if (outputStream instanceof FileSender) {
+				handedOver = true;
+				((FileSender) outputStream).sendFile(file, position, count);
+			} else {
+				copyFile(file, position, count);
+			}
+			if (chunked) {
+				outputStream.write(CRLF);
+			}
+			return this;
+		} finally {
+			if (!handedOver) {
+				file.close();
+			}
+		}
+	}
+
+	// writes remaining bytes of the buffer, release runs once the buffer is sent (or sending fails)
+	// connection streams send it as it is, a view of a mapped file never passes through the heap
+	public RequestContext writeBuffer(ByteBuffer buffer, Runnable release) throws IOException {
+		boolean handedOver = false;
+		try {
+			if (!headerGenerated) {
+				startBody();
+			}
+			if (!buffer.hasRemaining()) {
+				return this;
+			}
+			if (isCompressing()) {
+				byte[] data = new byte[Math.min(buffer.remaining(), 16384)];
+				while (buffer.hasRemaining()) {
+					int count = Math.min(buffer.remaining(), data.length);
+					buffer.get(data, 0, count);
+					write(data, 0, count);
+				}
+				return this;
+			}
+			if (chunked) {
+				writeChunk();
+				writeChunkSize(buffer.remaining());
+			}
+			if (outputStream instanceof FileSender) {
+				handedOver = true;
+				((FileSender) outputStream).sendBuffer(buffer, release);
+			} else {
+				byte[] data = new byte[Math.min(buffer.remaining(), 16384)];
+				while (buffer.hasRemaining()) {
+					int count = Math.min(buffer.remaining(), data.length);
+					buffer.get(data, 0, count);
+					outputStream.write(data, 0, count);
+				}
+			}
+			if (chunked) {
+				outputStream.write(CRLF);
+			}
+			return this;
+		} finally {
+			if (!handedOver) {
+				release.run();
+			}
+		}
+	}
+
+	private void copyFile(FileChannel file, long position, long count) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 16384));
+		while (count > 0) {
+			buffer.clear().limit((int) Math.min(count, buffer.capacity()));
+			int read = file.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("File is shorter than expected.");
+			}
+			if (isCompressing()) {
+				write(buffer.array(), 0, read);
+			} else {
+				outputStream.write(buffer.array(), 0, read);
+			}
+			position += read;
+			count -= read;
+		}
+	}
+
 	// ako header nije generiran, generira ga
 	// zatim zapisuje podatke u output stream
-	// poziva metodu write(byte[] data)
+	// poziva metodu write(CharSequence text, int offset, int len)
 	public RequestContext write(String text) throws IOException{
+		return write(text, 0, text.length());
+	}
+
+	public RequestContext write(CharSequence text) throws IOException {
+		return write(text, 0, text.length());
+	}
+
+	// text is encoded into a buffer reused for the whole response and written from it, so writing text
+	// allocates nothing; UTF-8 and single byte ASCII/Latin-1 text is encoded by hand, other charsets by
+	// a reused CharsetEncoder; characters the charset can't encode become '?', as with String.getBytes
+	public RequestContext write(CharSequence text, int offset, int len) throws IOException {
 		if (!headerGenerated) {
-			charset = Charset.forName(encoding);
+			startBody();
+		}
+		if (charset == null) {
+			charset = charsetFor(encoding);
+		}
+		if (encoded == null) {
+			encoded = new byte[TEXT_BUFFER_SIZE];
+		}
+		int end = offset + len;
+		if (charset == StandardCharsets.UTF_8) {
+			writeUtf8(text, offset, end);
+		} else if (charset == StandardCharsets.ISO_8859_1) {
+			writeSingleByte(text, offset, end, 0xFF);
+		} else if (charset == StandardCharsets.US_ASCII) {
+			writeSingleByte(text, offset, end, 0x7F);
+		} else {
+			writeEncoded(text, offset, end);
+		}
+		return this;
+	}
+
+	// text is mostly markup, so ascii characters are copied in a loop of their own; the loop is kept
+	// in a small method, so the JIT compiles it with charAt inlined
+	private void writeUtf8(CharSequence text, int offset, int end) throws IOException {
+		byte[] out = encoded;
+		int count = 0;
+		int limit = Math.min(end, offset + out.length);
+		while (offset < limit) {
+			char c = text.charAt(offset);
+			if (c >= 0x80) {
+				break;
+			}
+			out[count++] = (byte) c;
+			offset++;
+		}
+		if (offset < end) {
+			writeUtf8(text, offset, end, count);
+		} else if (count > 0) {
+			write(out, 0, count);
+		}
+	}
+
+	// rest of the text, after count bytes already in the buffer
+	private void writeUtf8(CharSequence text, int offset, int end, int count) throws IOException {
+		byte[] out = encoded;
+		for (int i = offset; i < end; i++) {
+			if (count > out.length - 4) {
+				write(out, 0, count);
+				count = 0;
+			}
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				out[count++] = (byte) c;
+			} else if (c < 0x800) {
+				out[count++] = (byte) (0xC0 | (c >> 6));
+				out[count++] = (byte) (0x80 | (c & 0x3F));
+			} else if (!Character.isSurrogate(c)) {
+				out[count++] = (byte) (0xE0 | (c >> 12));
+				out[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				out[count++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				out[count++] = (byte) (0xF0 | (codePoint >> 18));
+				out[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				out[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				out[count++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else {
+				out[count++] = '?'; // surrogate without its pair
+			}
+		}
+		if (count > 0) {
+			write(out, 0, count);
+		}
+	}
+
+	// charset whose characters are the first max + 1 code points
+	private void writeSingleByte(CharSequence text, int offset, int end, int max) throws IOException {
+		byte[] out = encoded;
+		int count = 0;
+		for (int i = offset; i < end; i++) {
+			if (count == out.length) {
+				write(out, 0, count);
+				count = 0;
+			}
+			char c = text.charAt(i);
+			if (c <= max) {
+				out[count++] = (byte) c;
+				continue;
+			}
+			if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+				i++; // one character outside of the charset
+			}
+			out[count++] = '?';
+		}
+		if (count > 0) {
+			write(out, 0, count);
+		}
+	}
+
+	// text is copied into a char array first, encoders are much faster on arrays than on CharSequences
+	private void writeEncoded(CharSequence text, int offset, int end) throws IOException {
+		if (encoder == null || encoder.charset() != charset) {
+			encoder = charset.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			encodedBuffer = ByteBuffer.wrap(encoded);
+			decoded = CharBuffer.allocate(TEXT_BUFFER_SIZE / 4);
+		}
+		encoder.reset();
+		decoded.clear();
+		boolean last;
+		do {
+			int count = Math.min(end - offset, decoded.remaining());
+			getChars(text, offset, offset + count, decoded.array(), decoded.position());
+			decoded.position(decoded.position() + count);
+			offset += count;
+			last = offset == end;
+			decoded.flip();
+			// errors are replaced, so the encoder stops only when the buffer is full or the text is done
+			while (encoder.encode(decoded, encodedBuffer, last).isOverflow()) {
+				writeEncodedBuffer();
+			}
+			// half of a surrogate pair may be left for the next round
+			decoded.compact();
+		} while (!last);
+		while (encoder.flush(encodedBuffer).isOverflow()) {
+			writeEncodedBuffer();
+		}
+		writeEncodedBuffer();
+	}
+
+	private static void getChars(CharSequence text, int start, int end, char[] destination, int position) {
+		if (text instanceof String) {
+			((String) text).getChars(start, end, destination, position);
+		} else if (text instanceof StringBuilder) {
+			((StringBuilder) text).getChars(start, end, destination, position);
+		} else {
+			for (int i = start; i < end; i++) {
+				destination[position++] = text.charAt(i);
+			}
+		}
+	}
+
+	private void writeEncodedBuffer() throws IOException {
+		if (encodedBuffer.position() > 0) {
+			write(encoded, 0, encodedBuffer.position());
+			encodedBuffer.clear();
+		}
+	}
+
+	// charsets looked up by name once
+	private static Charset charsetFor(String encoding) {
+		return CHARSETS.computeIfAbsent(encoding, Charset::forName);
+	}
+
+	// first bytes of the body are about to be written, header can't change any more; compressible body
+	// of unknown (or large enough) length is compressed, one of unknown length is held back until it
+	// reaches the minimum size
+	private void startBody() throws IOException {
+		charset = charsetFor(encoding);
+		if (compression == null || isBodyless() || !compression.accepts(mimeType)) {
 			createHeader();
+			return;
+		}
+		// caches must not give the compressed body to clients which didn't ask for it
+		headers.put("Vary", "Accept-Encoding");
+		if (contentCoding == null || (contentLength != null && contentLength < compression.getMinSize())) {
+			createHeader();
+			return;
+		}
+		headerGenerated = true;
+		if (contentLength == null) {
+			pending = new ByteArrayOutputStream();
+		} else {
+			startCompressed();
 		}
+	}
 
-		byte[] data = text.getBytes(charset);
-		return write(data);
+	// sends the header of the compressed body and compresses the body held back so far
+	private void startCompressed() throws IOException {
+		byte[] held = pending == null ? new byte[0] : pending.toByteArray();
+		pending = null;
+		// compressed length is not known in advance
+		contentLength = null;
+		headers.put("Content-Encoding", contentCoding);
+		createHeader();
+		deflater = compression.acquire(contentCoding);
+		if (deflated == null) {
+			deflated = new byte[8192];
+		}
+		if (contentCoding.equals(ResponseCompression.GZIP)) {
+			crc = new CRC32();
+			writeBody(GZIP_HEADER, 0, GZIP_HEADER.length);
+		}
+		deflate(held, 0, held.length);
+	}
+
+	private void deflate(byte[] data, int offset, int len) throws IOException {
+		if (crc != null) {
+			crc.update(data, offset, len);
+		}
+		deflater.setInput(data, offset, len);
+		while (!deflater.needsInput()) {
+			writeBody(deflated, 0, deflater.deflate(deflated));
+		}
+	}
+
+	// gzip member trailer: checksum and length of the uncompressed body, little endian
+	private byte[] gzipTrailer() {
+		long checksum = crc.getValue();
+		long size = deflater.getBytesRead();
+		byte[] trailer = new byte[8];
+		for (int i = 0; i < 4; i++) {
+			trailer[i] = (byte) (checksum >>> (8 * i));
+			trailer[i + 4] = (byte) (size >>> (8 * i));
+		}
+		return trailer;
+	}
+
+	private boolean isCompressing() {
+		return pending != null || deflater != null;
 	}
 
 	// generira header sa poljima opisanim u zadatku
@@ -177,38 +829,82 @@ public class RequestContext {
 	private void createHeader() throws IOException{
 		headerGenerated = true;
 
-		String header = "HTTP/1.1 {statusCode} {statusText}\r\n";
-		if(mimeType.startsWith("text/")) {
-			header += "Content-Type: {mimeType}; charset={encoding}\r\n";
+		HeaderWriter header = headerWriter();
+		entityHeader(header);
+		if(contentLength == null && keepAlive && !isBodyless()) {
+			if(http11) {
+				chunked = true;
+				header.append(HeaderWriter.CHUNKED);
+			} else {
+				keepAlive = false; // HTTP/1.0 body without length ends when connection is closed
+			}
+		}
+		connectionHeaders(header);
+		header.writeTo(outputStream);
+	}
+
+	// status line and headers describing the body, same for every client, so they can be prepared in advance
+	private void entityHeader(HeaderWriter header) {
+		header.statusLine(statusCode, statusText);
+		if(isBodyless()) {
+			// headers describing the body are left out, client keeps the one it already has
 		} else {
-			header += "Content-Type: {mimeType}\r\n";
+			header.contentType(mimeType, mimeType.startsWith("text/") ? encoding : null);
 		}
-		if(contentLength != null) {
-			header += "Content-Length: " + contentLength + "\r\n";
+		if(contentLength != null && !isBodyless()) {
+			header.header(HeaderWriter.CONTENT_LENGTH, contentLength);
+		}
+		for(Map.Entry<String, String> entry : headers.entrySet()) {
+			header.header(entry.getKey(), entry.getValue());
+		}
+	}
+
+	// 304 Not Modified never has a body, so it has neither length nor chunks
+	private boolean isBodyless() {
+		return statusCode == 304;
+	}
+
+	// headers which depend on the connection and the session, followed by the empty line
+	private void connectionHeaders(HeaderWriter header) {
+		if(keepAlive && !http11) {
+			header.append(HeaderWriter.KEEP_ALIVE);
+		} else if(!keepAlive && http11) {
+			header.append(HeaderWriter.CLOSE);
 		}
 
 		for(RCCookie cookie : outputCookies) {
-			header+="Set-Cookie: "+ cookie.getName() +"=\""+ cookie.getValue() +"\"";
+			header.append(HeaderWriter.SET_COOKIE).text(cookie.getName()).text("=\"").text(cookie.getValue()).text("\"");
 			if(cookie.getDomain() != null) {
-				header+="; Domain="+cookie.getDomain();
+				header.text("; Domain=").text(cookie.getDomain());
 			}
 			if(cookie.getPath() != null) {
-				header+="; Path="+cookie.getPath();
+				header.text("; Path=").text(cookie.getPath());
 			}
 			if(cookie.getMaxAge() != null) {
-				header+="; Max-Age="+cookie.getMaxAge();
+				header.text("; Max-Age=").number(cookie.getMaxAge());
 			}
-			header+="; HttpOnly";
-			header+="\r\n";
+			header.text("; HttpOnly").crlf();
 		}
-		header += "\r\n";
-		header = header.replace("{statusCode}", Integer.toString(statusCode)).replace("{statusText}", statusText)
-				.replace("{mimeType}", mimeType).replace("{encoding}", encoding);
-
+		header.crlf();
+	}
 
-		byte[] data = header.getBytes(StandardCharsets.ISO_8859_1);
+	byte[] encodeEntityHeader() {
+		HeaderWriter header = headerWriter();
+		entityHeader(header);
+		return header.toByteArray();
+	}
 
-		outputStream.write(data);
+	// complete response prepared in advance (static file cache): encoded entity header and body are
+	// written as they are, only connection and cookie headers are added
+	void writePrepared(byte[] encodedEntityHeader, byte[] body) throws IOException {
+		if (headerGenerated) throw new RuntimeException("Cannot change now.");
+		headerGenerated = true;
+		contentLength = (long) body.length;
+		outputStream.write(encodedEntityHeader);
+		HeaderWriter header = headerWriter();
+		connectionHeaders(header);
+		header.writeTo(outputStream);
+		outputStream.write(body);
 	}
 	
 	public static class RCCookie{
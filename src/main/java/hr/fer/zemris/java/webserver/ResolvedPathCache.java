@@ -0,0 +1,202 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// url paths already resolved against the document root, so a request for a known file does not touch
+// the filesystem before it is served; files are kept until the document root watcher reports a change,
+// misses (403, 404) only for a short time, scanners asking for random paths would fill the cache otherwise
+// files and misses are bounded separately (maxEntries each), a full cache costs no more than an empty one:
+// new files are not stored, the oldest miss makes room for a new one
+public class ResolvedPathCache {
+
+	private ConcurrentHashMap<String, Resolution> files = new ConcurrentHashMap<String, Resolution>();
+	// misses in the order they were stored, which is also the order they expire in
+	private LinkedHashMap<String, Resolution> misses = new LinkedHashMap<String, Resolution>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	// guards the misses, a LinkedHashMap is not safe for concurrent use
+	private ReentrantLock missLock = new ReentrantLock();
+	private int maxEntries;
+	private long negativeTtl;
+	// incremented on every invalidation, resolution done before it is not stored
+	private AtomicLong generation = new AtomicLong();
+
+	public ResolvedPathCache(int maxEntries, long negativeTtl) {
+		this.maxEntries = maxEntries;
+		this.negativeTtl = negativeTtl;
+	}
+
+	// cached resolution of the url path, null if it has to be resolved
+	public Resolution get(String urlPath) {
+		Resolution resolution = files.get(urlPath);
+		if (resolution != null) {
+			return resolution;
+		}
+		missLock.lock();
+		try {
+			resolution = misses.get(urlPath);
+			if (resolution != null && resolution.expires < System.currentTimeMillis()) {
+				misses.remove(urlPath);
+				return null;
+			}
+			return resolution;
+		} finally {
+			missLock.unlock();
+		}
+	}
+
+	public long generation() {
+		return generation.get();
+	}
+
+	// stores resolution unless something was invalidated since generation was read (it may be stale)
+	public void put(String urlPath, Resolution resolution, long generation) {
+		if (resolution.file == null) {
+			putMiss(urlPath, resolution, generation);
+			return;
+		}
+		if (files.size() >= maxEntries || generation != this.generation.get()) {
+			return;
+		}
+		files.put(urlPath, resolution);
+		// invalidation may have run between the check and the put
+		if (generation != this.generation.get()) {
+			files.remove(urlPath, resolution);
+		}
+	}
+
+	private void putMiss(String urlPath, Resolution resolution, long generation) {
+		missLock.lock();
+		try {
+			// invalidation drops misses under the lock after it changes the generation
+			if (generation != this.generation.get()) {
+				return;
+			}
+			resolution.expires = System.currentTimeMillis() + negativeTtl;
+			// miss stored again goes to the end, with the ones expiring last
+			misses.remove(urlPath);
+			misses.put(urlPath, resolution);
+		} finally {
+			missLock.unlock();
+		}
+	}
+
+	// drops resolutions of the path and everything below it (and of the file whose gzip sidecar it is),
+	// every miss is dropped since the path may exist now; null drops everything
+	public void invalidate(Path changed) {
+		generation.incrementAndGet();
+		missLock.lock();
+		try {
+			misses.clear();
+		} finally {
+			missLock.unlock();
+		}
+		if (changed == null) {
+			files.clear();
+			return;
+		}
+		Path original = GzipSidecars.original(changed);
+		Iterator<Resolution> it = files.values().iterator();
+		while (it.hasNext()) {
+			ResolvedFile file = it.next().file;
+			if (file.path.startsWith(changed) || file.path.equals(original)) {
+				it.remove();
+			}
+		}
+	}
+
+	public static class Resolution {
+		private int status;
+		private ResolvedFile file;
+		// misses expire, files stay until they are invalidated
+		private long expires = Long.MAX_VALUE;
+
+		// path which is not a readable file below the document root
+		public Resolution(int status) {
+			this.status = status;
+		}
+
+		public Resolution(ResolvedFile file) {
+			this.status = 200;
+			this.file = file;
+		}
+
+		// 200 if the path is a readable file, 403 or 404 otherwise
+		public int getStatus() {
+			return status;
+		}
+
+		public ResolvedFile getFile() {
+			return file;
+		}
+	}
+
+	// what serving a static file needs to know about it, read once when it is resolved
+	public static class ResolvedFile {
+		private Path path;
+		private long size;
+		private long lastModified;
+		private String etag;
+		private String mimeType;
+		// precompressed sidecar, null if there is none or the mime type is not compressible
+		private ResolvedFile gzipped;
+
+		public ResolvedFile(Path path, BasicFileAttributes attributes, String mimeType, ResolvedFile gzipped) {
+			this.path = path;
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+			this.etag = entityTag(attributes);
+			this.mimeType = mimeType;
+			this.gzipped = gzipped;
+		}
+
+		// strong entity tag from size, modification time and file key (device and inode), so a file
+		// replaced by another one with the same size and time still gets a different tag
+		private static String entityTag(BasicFileAttributes attributes) {
+			Object fileKey = attributes.fileKey();
+			return "\"" + Long.toHexString(attributes.size())
+					+ "-" + Long.toHexString(attributes.lastModifiedTime().toMillis())
+					+ (fileKey == null ? "" : "-" + Integer.toHexString(fileKey.hashCode())) + "\"";
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public String getName() {
+			return path.getFileName().toString();
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		public ResolvedFile getGzipped() {
+			return gzipped;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+// on-the-fly compression of dynamic responses (workers and smart scripts): which coding the client gets,
+// which responses are worth compressing, and a pool of deflaters reused across responses, so native
+// zlib memory is not allocated and freed for every response
+public class ResponseCompression {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	private int level;
+	private int minSize;
+	private Set<String> mimeTypes;
+	private int maxPooled;
+	// gzip deflaters produce raw deflate data (header and trailer are written by the response),
+	// deflate ones produce the zlib format
+	private Queue<Deflater> gzipDeflaters = new ConcurrentLinkedQueue<Deflater>();
+	private Queue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<Deflater>();
+	private AtomicInteger pooled = new AtomicInteger();
+
+	public ResponseCompression(int level, int minSize, Set<String> mimeTypes, int maxPooled) {
+		this.level = level;
+		this.minSize = minSize;
+		this.mimeTypes = mimeTypes;
+		this.maxPooled = maxPooled;
+	}
+
+	// bodies smaller than this are sent as they are
+	public int getMinSize() {
+		return minSize;
+	}
+
+	// mime type (parameters such as charset are ignored) is on the allow list
+	public boolean accepts(String mimeType) {
+		int semicolon = mimeType.indexOf(';');
+		return mimeTypes.contains((semicolon < 0 ? mimeType : mimeType.substring(0, semicolon)).trim());
+	}
+
+	// coding for the Accept-Encoding header value, gzip is preferred; null if client accepts neither
+	public String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		double gzip = qValue(acceptEncoding, GZIP);
+		double deflate = qValue(acceptEncoding, DEFLATE);
+		if (gzip > 0 && gzip >= deflate) {
+			return GZIP;
+		}
+		return deflate > 0 ? DEFLATE : null;
+	}
+
+	// quality of the coding in Accept-Encoding value (x-gzip is the same as gzip, * stands for codings
+	// which are not listed), 0 if the client does not accept it
+	public static double qValue(String acceptEncoding, String coding) {
+		double wildcard = 0;
+		for (String element : acceptEncoding.split(",")) {
+			String[] parts = element.split(";");
+			String name = parts[0].trim().toLowerCase(Locale.ROOT);
+			double q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+					try {
+						q = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			if (name.equals(coding) || (coding.equals(GZIP) && name.equals("x-gzip"))) {
+				return q;
+			}
+			if (name.equals("*")) {
+				wildcard = q;
+			}
+		}
+		return wildcard;
+	}
+
+	// reset deflater for the coding, taken from the pool if there is one
+	Deflater acquire(String coding) {
+		Deflater deflater = (coding.equals(GZIP) ? gzipDeflaters : zlibDeflaters).poll();
+		if (deflater == null) {
+			return new Deflater(level, coding.equals(GZIP));
+		}
+		pooled.decrementAndGet();
+		return deflater;
+	}
+
+	// deflaters which don't fit in the pool release their native memory right away
+	void release(String coding, Deflater deflater) {
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		(coding.equals(GZIP) ? gzipDeflaters : zlibDeflaters).offer(deflater);
+	}
+}
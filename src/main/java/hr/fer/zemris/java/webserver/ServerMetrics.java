@@ -0,0 +1,68 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+public class ServerMetrics implements ServerMetricsMBean {
+
+	private IntSupplier queueDepth;
+	private AtomicLong rejectedRequests = new AtomicLong();
+	private AtomicLong queueTimeouts = new AtomicLong();
+	private AtomicLong drainedRequests = new AtomicLong();
+	private AtomicLong abortedRequests = new AtomicLong();
+	private AtomicLong timedOutConnections = new AtomicLong();
+
+	public ServerMetrics(IntSupplier queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queueDepth.getAsInt();
+	}
+
+	@Override
+	public long getRejectedRequests() {
+		return rejectedRequests.get();
+	}
+
+	@Override
+	public long getQueueTimeouts() {
+		return queueTimeouts.get();
+	}
+
+	@Override
+	public long getDrainedRequests() {
+		return drainedRequests.get();
+	}
+
+	@Override
+	public long getAbortedRequests() {
+		return abortedRequests.get();
+	}
+
+	@Override
+	public long getTimedOutConnections() {
+		return timedOutConnections.get();
+	}
+
+	void requestRejected() {
+		rejectedRequests.incrementAndGet();
+	}
+
+	void queueTimedOut() {
+		queueTimeouts.incrementAndGet();
+	}
+
+	void requestDrained() {
+		drainedRequests.incrementAndGet();
+	}
+
+	void requestsAborted(int count) {
+		abortedRequests.addAndGet(count);
+	}
+
+	void connectionTimedOut() {
+		timedOutConnections.incrementAndGet();
+	}
+}
@@ -0,0 +1,23 @@
+package hr.fer.zemris.java.webserver;
+
+// server counters visible over JMX (jconsole, monitoring agents)
+public interface ServerMetricsMBean {
+
+	// tasks waiting for a worker thread
+	int getQueueDepth();
+
+	// requests answered with 503 because the queue was full
+	long getRejectedRequests();
+
+	// requests answered with 503 because they waited in the queue for too long
+	long getQueueTimeouts();
+
+	// requests completed while the server was shutting down
+	long getDrainedRequests();
+
+	// requests still unfinished when the shutdown deadline passed
+	long getAbortedRequests();
+
+	// connections closed because a header, the next request or a write took too long
+	long getTimedOutConnections();
+}
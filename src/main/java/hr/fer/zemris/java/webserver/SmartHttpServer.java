@@ -1,48 +1,168 @@
 package hr.fer.zemris.java.webserver;
 
-import java.io.BufferedReader;
-import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
 import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
 import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
 import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+import hr.fer.zemris.java.webserver.ResolvedPathCache.Resolution;
+import hr.fer.zemris.java.webserver.ResolvedPathCache.ResolvedFile;
 import hr.fer.zemris.java.webserver.workers.BgColorWorker;
 import hr.fer.zemris.java.webserver.workers.Home;
 import hr.fer.zemris.java.webserver.workers.SumWorker;
 
 public class SmartHttpServer {
+    // IMF-fixdate used by Last-Modified, e.g. Sun, 06 Nov 1994 08:49:37 GMT
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final byte[] BAD_REQUEST =
+            "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADER_TOO_LARGE =
+            "HTTP/1.1 431 Request Header Fields Too Large\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PAYLOAD_TOO_LARGE =
+            "HTTP/1.1 413 Payload Too Large\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // interim response to a client waiting with its body for the server's consent (Expect: 100-continue)
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
     private String address;
     private String domainName;
     private int port;
     private int workerThreads;
     private int sessionTimeout;
+    private String transport;
+    private int acceptors;
+    private int backlog;
+    private String executor;
+    private int keepAliveTimeout;
+    // milliseconds a client may take to send a complete request header (measured from its first byte,
+    // for a new connection from accept) and a blocked write may wait for the client to read
+    private long headerTimeout;
+    private long writeTimeout;
+    // milliseconds a client may take to send the next part of a request body
+    private long bodyTimeout;
+    // all connection timeouts, so thousands of connections don't need thousands of timers
+    private TimingWheel timeouts;
+    private int maxHeaderSize;
+    // request bodies larger than maxBodySize are refused; form parts larger than formMemoryThreshold are
+    // written to temporary files in uploadDirectory, urlencoded forms larger than it are refused
+    private long maxBodySize;
+    private int formMemoryThreshold;
+    private Path uploadDirectory;
+    private int keepAliveMaxRequests;
+    private boolean pipelineConcurrent;
+    private int pipelineMaxDepth;
+    // bytes of pipelined responses which may wait (blocking transport) behind the one being sent
+    private long pipelineMaxBuffered;
+    private int queueCapacity;
+    private long queueMaxWait;
+    // sent as is when the server is overloaded, so rejecting costs almost nothing
+    private byte[] serviceUnavailable;
+    private ServerMetrics metrics = new ServerMetrics(this::getQueueDepth);
+    private ObjectName metricsName;
+    // output buffers: heap ones for blocking connections, direct ones for nio
+    private BufferPool heapBuffers;
+    private BufferPool directBuffers;
     private Map<String,String> mimeTypes = new HashMap<String, String>();
-    private ServerThread serverThread;
+    // mime types of files which may have a precompressed gzip sidecar
+    private Set<String> compressibleTypes;
+    // are missing sidecars created when the server starts
+    private boolean gzipGenerate;
+    // on-the-fly compression of dynamic responses, null if disabled
+    private ResponseCompression compression;
+    private List<Thread> acceptorThreads = new ArrayList<Thread>();
+    private List<ServerSocketChannel> listeners = new ArrayList<ServerSocketChannel>();
+    // shutdown: no new connections or requests, open connections are closed as soon as they are idle
+    private volatile boolean draining = false;
+    // drain deadline passed, requests finishing after it are not counted as drained
+    private volatile boolean aborting = false;
+    private long drainTimeout;
+    // accepted connections not closed yet (blocking ones also while waiting in the queue)
+    private AtomicInteger openConnections = new AtomicInteger();
+    // requests being processed
+    private AtomicInteger inFlight = new AtomicInteger();
+    private Set<ClientWorker> connections = ConcurrentHashMap.newKeySet();
     private ExecutorService threadPool;
+    // nio: worker of a pool thread (with its request context and maps) serves every request the thread processes
+    private ThreadLocal<ClientWorker> nioWorkers = ThreadLocal.withInitial(() -> new ClientWorker(null, 0));
+    private ExecutorService pipelinePool;
+    // nio: threads reading static files into direct buffers, so selector threads never wait for the disk;
+    // null if files are sent with transferTo from the selector thread
+    private int fileReaderThreads;
+    private ExecutorService fileReaders;
     private Path documentRoot;
+    // small static files with encoded headers, kept fresh by the document root watcher
+    private StaticFileCache staticCache;
+    private DocumentRootWatcher watcher;
+    // large static files are served from shared memory mappings
+    private MappedFileCache mappedFiles;
+    // url paths resolved to files (or misses), null if disabled
+    private ResolvedPathCache resolvedPaths;
+    // files of the document root with hashes of their content for fingerprinted urls, null if disabled
+    private WebrootIndex webrootIndex;
+    private boolean fingerprintAssets;
     
     private Map<String,IWebWorker> workersMap;
-    private Map<String, SessionMapEntry> sessions = new HashMap<String, SmartHttpServer.SessionMapEntry>();
+    // looked up by every request and swept by the cleaning thread at the same time
+    private Map<String, SessionMapEntry> sessions = new ConcurrentHashMap<String, SmartHttpServer.SessionMapEntry>();
     private Random sessionRandom = new Random();
     
     private Thread cleaningThread;
@@ -59,13 +179,73 @@ public class SmartHttpServer {
             this.workerThreads = Integer.parseInt(prop.getProperty("server.workerThreads"));
             this.sessionTimeout = Integer.parseInt(prop.getProperty("session.timeout"));
             this.documentRoot = Path.of(prop.getProperty("server.documentRoot"));
+            this.transport = prop.getProperty("server.transport", "blocking").trim();
+            this.acceptors = Math.max(1, Integer.parseInt(prop.getProperty("server.acceptors", "1").trim()));
+            this.backlog = Integer.parseInt(prop.getProperty("server.backlog", "128").trim());
+            this.executor = prop.getProperty("server.executor", "fixed").trim();
+            int outputBufferSize = Integer.parseInt(prop.getProperty("server.output.bufferSize", "16384").trim());
+            this.heapBuffers = new BufferPool(outputBufferSize, false, 1024);
+            this.directBuffers = new BufferPool(outputBufferSize, true, 1024);
+            this.maxHeaderSize = Integer.parseInt(prop.getProperty("server.maxHeaderSize", "8192").trim());
+            this.keepAliveTimeout = Integer.parseInt(prop.getProperty("server.keepAlive.timeout", "5").trim());
+            this.headerTimeout = Long.parseLong(prop.getProperty("server.timeout.header", "10").trim()) * 1000;
+            this.writeTimeout = Long.parseLong(prop.getProperty("server.timeout.write", "30").trim()) * 1000;
+            this.bodyTimeout = Long.parseLong(prop.getProperty("server.timeout.body", "30").trim()) * 1000;
+            this.maxBodySize = Long.parseLong(prop.getProperty("server.request.maxBodySize", "10485760").trim());
+            this.formMemoryThreshold = Integer.parseInt(prop.getProperty("server.request.memoryThreshold", "65536").trim());
+            String uploadDirectory = prop.getProperty("server.request.uploadDirectory", "").trim();
+            this.uploadDirectory = Path.of(uploadDirectory.isEmpty() ? System.getProperty("java.io.tmpdir") : uploadDirectory);
+            this.keepAliveMaxRequests = Integer.parseInt(prop.getProperty("server.keepAlive.maxRequests", "100").trim());
+            this.pipelineConcurrent = Boolean.parseBoolean(prop.getProperty("server.pipelining.concurrent", "false").trim());
+            this.pipelineMaxDepth = Integer.parseInt(prop.getProperty("server.pipelining.maxDepth", "8").trim());
+            this.pipelineMaxBuffered = Long.parseLong(prop.getProperty("server.pipelining.maxBufferedBytes", "1048576").trim());
+            this.queueCapacity = Integer.parseInt(prop.getProperty("server.queue.capacity", "100").trim());
+            if (queueCapacity < 0) {
+                throw new IllegalArgumentException("server.queue.capacity must not be negative.");
+            }
+            this.queueMaxWait = Long.parseLong(prop.getProperty("server.queue.maxWait", "3000").trim());
+            String retryAfter = prop.getProperty("server.retryAfter", "5").trim();
+            this.drainTimeout = Long.parseLong(prop.getProperty("server.shutdown.drainTimeout", "10").trim());
+            this.serviceUnavailable = ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + retryAfter
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            long cacheBytes = Long.parseLong(prop.getProperty("server.cache.maxBytes", "16777216").trim());
+            int cacheFileSize = Integer.parseInt(prop.getProperty("server.cache.maxFileSize", "262144").trim());
+            if (cacheBytes > 0) {
+                this.staticCache = new StaticFileCache(cacheBytes, cacheFileSize);
+            }
+            this.fileReaderThreads = Integer.parseInt(prop.getProperty("server.nio.fileReaders", "4").trim());
+            long mmapMinFileSize = Long.parseLong(prop.getProperty("server.mmap.minFileSize", "1048576").trim());
+            long mmapMaxBytes = Long.parseLong(prop.getProperty("server.mmap.maxBytes", "268435456").trim());
+            // pages of a mapping are read from disk by the thread which touches them first, with file
+            // readers on nio that must not be the selector thread
+            boolean fileReadersUsed = transport.equals("nio") && fileReaderThreads > 0;
+            if (mmapMinFileSize > 0 && mmapMaxBytes > 0 && !fileReadersUsed) {
+                this.mappedFiles = new MappedFileCache(mmapMinFileSize, mmapMaxBytes);
+            }
+            this.gzipGenerate = Boolean.parseBoolean(prop.getProperty("server.gzip.generate", "false").trim());
+            int compressionLevel = Integer.parseInt(prop.getProperty("server.compression.level", "6").trim());
+            int compressionMinSize = Integer.parseInt(prop.getProperty("server.compression.minSize", "1024").trim());
+            int resolveMaxEntries = Integer.parseInt(prop.getProperty("server.resolve.maxEntries", "10000").trim());
+            long resolveNegativeTtl = Long.parseLong(prop.getProperty("server.resolve.negativeTtl", "1000").trim());
+            if (resolveMaxEntries > 0) {
+                this.resolvedPaths = new ResolvedPathCache(resolveMaxEntries, resolveNegativeTtl);
+            }
+            this.fingerprintAssets = Boolean.parseBoolean(prop.getProperty("server.assets.fingerprint", "true").trim());
             String mimeTypesFileName = prop.getProperty("server.mimeConfig");
             String workersFileName = prop.getProperty("server.workers");
             prop.clear();
             // load mime types
             prop.load(new FileInputStream(mimeTypesFileName));
             for (String key : prop.stringPropertyNames()) {
-                mimeTypes.put(key, prop.getProperty(key));
+                if (!key.equals(GzipSidecars.COMPRESSIBLE_KEY)) {
+                    mimeTypes.put(key, prop.getProperty(key));
+                }
+            }
+            compressibleTypes = GzipSidecars.compressibleTypes(prop);
+            if (compressionLevel > 0) {
+                // one idle deflater per worker thread is kept for reuse; with virtual threads or the pipelining
+                // pool more can be in use at once, those are ended when they are released
+                this.compression = new ResponseCompression(compressionLevel, compressionMinSize, compressibleTypes, workerThreads);
             }
             prop.clear();
             
@@ -100,9 +280,96 @@ public class SmartHttpServer {
     protected synchronized void start() {
         // … start server thread if not already running …
         // … init threadpool by Executors.newFixedThreadPool(...); …
-        if (serverThread == null) {
-            serverThread = new ServerThread();
-            serverThread.start();
+        if (acceptorThreads.isEmpty() && !draining) {
+            this.threadPool = createThreadPool();
+            this.timeouts = new TimingWheel(100, 512);
+            if (transport.equals("nio") && fileReaderThreads > 0) {
+                this.fileReaders = Executors.newFixedThreadPool(fileReaderThreads);
+            }
+            if (gzipGenerate) {
+                try {
+                    int created = GzipSidecars.generate(documentRoot, mimeTypes, compressibleTypes);
+                    System.out.println("Created " + created + " gzip sidecar files.");
+                } catch (IOException e) {
+                    System.out.println("Error while creating gzip sidecar files.");
+                }
+            }
+            if (fingerprintAssets) {
+                try {
+                    webrootIndex = new WebrootIndex(documentRoot, mimeTypes);
+                    webrootIndex.build();
+                } catch (IOException e) {
+                    System.out.println("Error while indexing document root, asset urls are not fingerprinted.");
+                    webrootIndex = null;
+                }
+            }
+            if (staticCache != null || mappedFiles != null || resolvedPaths != null || webrootIndex != null) {
+                try {
+                    watcher = new DocumentRootWatcher(documentRoot);
+                    if (webrootIndex != null) {
+                        watcher.addListener(webrootIndex::update);
+                    }
+                    if (resolvedPaths != null) {
+                        watcher.addListener(resolvedPaths::invalidate);
+                    }
+                    if (staticCache != null) {
+                        watcher.addListener(staticCache::invalidate);
+                        // cached entry of a file also holds its sidecar
+                        watcher.addListener(changed -> {
+                            Path original = changed == null ? null : GzipSidecars.original(changed);
+                            if (original != null) {
+                                staticCache.invalidate(original);
+                            }
+                        });
+                    }
+                    if (mappedFiles != null) {
+                        // mappings are checked against modification time anyway, this only unmaps them sooner
+                        watcher.addListener(mappedFiles::invalidate);
+                    }
+                    watcher.start();
+                } catch (IOException e) {
+                    // without notifications about changed files cached content could get stale
+                    System.out.println("Error while watching document root, static file cache is disabled.");
+                    staticCache = null;
+                    resolvedPaths = null;
+                    webrootIndex = null;
+                }
+            }
+            // blocking connection threads wait for their pipelined requests, so those can't share a fixed pool
+            if (pipelineConcurrent && !transport.equals("nio") && !executor.equals("virtual")) {
+                this.pipelinePool = Executors.newFixedThreadPool(this.workerThreads);
+            } else {
+                this.pipelinePool = threadPool;
+            }
+            // with SO_REUSEPORT every acceptor gets its own listening socket and the kernel spreads
+            // connections among them, otherwise all acceptors share one socket
+            boolean reusePort = acceptors > 1 && reusePortSupported();
+            ServerSocketChannel listener = null;
+            for (int i = 0; i < acceptors; i++) {
+                try {
+                    if (listener == null || reusePort) {
+                        listener = openListener(reusePort);
+                        listeners.add(listener);
+                        // other acceptors listen on the port the system chose for the first one
+                        port = getLocalPort();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error while opening server socket.");
+                    System.exit(1);
+                }
+                Thread acceptor = transport.equals("nio") ? new NioServerThread(listener) : new ServerThread(listener);
+                acceptor.setName("acceptor-" + i);
+                acceptorThreads.add(acceptor);
+            }
+            try {
+                metricsName = new ObjectName("hr.fer.zemris.java.webserver:type=SmartHttpServer,port=" + getLocalPort());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+            } catch (JMException e) {
+                System.out.println("Error while registering server metrics.");
+            }
+            for (Thread acceptor : acceptorThreads) {
+                acceptor.start();
+            }
 
             // demonska dretva koja cisti zastarjele cookije
             cleaningThread = new Thread(() -> {
@@ -112,32 +379,197 @@ public class SmartHttpServer {
                     } catch (InterruptedException ignoreable) {}
 
                     long currentTime = System.currentTimeMillis();
-                    long cookieTime;
-                    synchronized (sessions) {
-                        for (String key : sessions.keySet()) {
-                            cookieTime = sessions.get(key).validUntil;
-                            if (currentTime - cookieTime > 0) {
-                                sessions.remove(key);
-                            }
-                        }
-                    }
+                    sessions.values().removeIf(entry -> currentTime - entry.validUntil > 0);
                 }
             });
             cleaningThread.setDaemon(true);
             cleaningThread.start();
         }
-        this.threadPool = Executors.newFixedThreadPool(this.workerThreads);
     }
+
+    private ServerSocketChannel openListener(boolean reusePort) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort) {
+            listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        InetSocketAddress bindAddress = address == null || address.isBlank()
+                ? new InetSocketAddress(port) : new InetSocketAddress(address.trim(), port);
+        listener.bind(bindAddress, backlog);
+        return listener;
+    }
+
+    private static boolean reusePortSupported() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // fixed: workerThreads platform threads shared by all connections
+    // virtual: every task gets its own virtual thread, so blocked clients don't hold pool threads
+    private ExecutorService createThreadPool() {
+        if (executor.equals("virtual")) {
+            // virtual threads exist from Java 21 on, we compile for 17 so they are looked up reflectively
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // falls back to the bounded pool, which still answers with 503 when it is overloaded
+                System.out.println("Virtual threads need Java 21, this JVM is Java " + Runtime.version().feature()
+                        + "; requests run on the fixed pool of " + workerThreads + " worker threads instead.");
+                executor = "fixed";
+            }
+        }
+        // bounded queue: when it is full (or a task waits in it too long) client gets 503 instead of waiting;
+        // without a queue a task is only taken by an idle worker thread
+        BlockingQueue<Runnable> queue = queueCapacity > 0
+                ? new ArrayBlockingQueue<Runnable>(queueCapacity) : new SynchronousQueue<Runnable>();
+        return new ThreadPoolExecutor(this.workerThreads, this.workerThreads, 0L, TimeUnit.MILLISECONDS, queue);
+    }
+
+    // port the server listens on (chosen by the system if server.port is 0), -1 if it is not started
+    public int getLocalPort() {
+        try {
+            return listeners.isEmpty() ? -1 : ((InetSocketAddress) listeners.get(0).getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // number of connections (or nio requests) waiting for a worker thread
+    public int getQueueDepth() {
+        if (threadPool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) threadPool).getQueue().size();
+        }
+        return 0;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    private boolean waitedTooLong(long queuedAt) {
+        return queueMaxWait > 0 && System.currentTimeMillis() - queuedAt > queueMaxWait;
+    }
+
+    // answers with the prepared 503 response without reading the request
+    private void rejectConnection(Socket client) {
+        try {
+            client.getOutputStream().write(serviceUnavailable);
+            client.shutdownOutput();
+        } catch (IOException ignorable) {
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ignorable) {}
+        }
+    }
+
+    // blocking connection waiting for its next request holds a worker thread for up to keepAlive.timeout,
+    // longer than queued connections may wait; while connections wait in the queue, as many idle
+    // keep-alive connections are closed (clients open a new one for their next request), a connection
+    // which becomes idle then closes itself
+    private void closeIdleForQueued() {
+        int waiting = getQueueDepth();
+        for (ClientWorker connection : connections) {
+            if (waiting <= 0) {
+                return;
+            }
+            if (connection.closeIfKeptAlive()) {
+                waiting--;
+            }
+        }
+    }
+
+    // graceful: stops accepting, closes idle connections right away and lets requests in flight
+    // finish (their connections close afterwards); whatever is left after drainTimeout is aborted
     protected synchronized void stop() {
         // … signal server thread to stop running …
         // … shutdown threadpool …
         // https://stackoverflow.com/questions/10961714/how-to-properly-stop-the-thread-in-java
         // "Using Thread.interrupt() is a perfectly acceptable way of doing this."
-        serverThread.interrupt();
-        threadPool.shutdown();
+        if (acceptorThreads.isEmpty() || draining) {
+            return;
+        }
+        draining = true;
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException ignorable) {}
+        }
+        for (ClientWorker connection : connections) {
+            connection.closeIfIdle();
+        }
+        for (Thread acceptor : acceptorThreads) {
+            if (acceptor instanceof NioServerThread) {
+                NioServerThread loop = (NioServerThread) acceptor;
+                loop.execute(loop::closeIdleConnections);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + drainTimeout * 1000;
+        while (openConnections.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        aborting = true;
+        // nio requests are in flight from the moment they are queued, so queued ones are already counted
+        int aborted = inFlight.get();
+        for (Runnable queued : threadPool.shutdownNow()) {
+            if (queued instanceof ClientWorker) {
+                // connections which never got a worker thread
+                rejectConnection(((ClientWorker) queued).csocket);
+                aborted++;
+            } else if (queued instanceof NioRequest) {
+                // selector threads write the response before they close their connections
+                ((NioRequest) queued).reject();
+            }
+        }
+        pipelinePool.shutdownNow();
+        if (fileReaders != null) {
+            fileReaders.shutdownNow();
+        }
+        for (ClientWorker connection : connections) {
+            connection.closeSocket();
+        }
+        for (Thread acceptor : acceptorThreads) {
+            // nio loops close their remaining connections on the way out
+            acceptor.interrupt();
+        }
+        timeouts.stop();
+        if (watcher != null) {
+            watcher.stop();
+        }
+        metrics.requestsAborted(aborted);
+        System.out.println("Server stopped: " + metrics.getDrainedRequests() + " requests drained, " + aborted + " aborted.");
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException ignorable) {}
+    }
+
+    private void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    private void requestFinished() {
+        inFlight.decrementAndGet();
+        if (draining && !aborting) {
+            metrics.requestDrained();
+        }
     }
 
     protected class ServerThread extends Thread {
+        private ServerSocketChannel listener;
+
+        public ServerThread(ServerSocketChannel listener) {
+            this.listener = listener;
+        }
+
         @Override
             public void run() {
                 // given in pesudo-code:
@@ -147,208 +579,1673 @@ public class SmartHttpServer {
                 // ClientWorker cw = new ClientWorker(client);
                 // submit cw to threadpool for execution
                 // }
-                ServerSocket serverSocket = null;
-                try{
-                    serverSocket = new ServerSocket(port);
-                } catch (IOException e) {
-                    System.out.println("Error while opening server socket.");
-                    System.exit(1);
-                }
-                while (true) {
+                // listener is opened by start(), several acceptors may share it
+                // stop() closes it, which ends this loop
+                while (listener.isOpen()) {
                     Socket client = null;
                     try {
-                        client = serverSocket.accept();
+                        client = listener.accept().socket();
                     } catch (IOException e) {
-                        System.out.println("Error while accepting client.");
+                        if (listener.isOpen()) {
+                            System.out.println("Error while accepting client.");
+                        }
                         continue;
                     }
                     ClientWorker cw = new ClientWorker(client);
-                    threadPool.submit(cw);
+                    openConnections.incrementAndGet();
+                    try {
+                        // execute, not submit, so stop() finds the workers still waiting in the queue
+                        threadPool.execute(cw);
+                        closeIdleForQueued();
+                    } catch (RejectedExecutionException e) {
+                        openConnections.decrementAndGet();
+                        if (!draining) {
+                            metrics.requestRejected();
+                        }
+                        rejectConnection(client);
+                    }
+                }
+            }
+        }
+
+    // alternative transport: each selector thread does accepts, reads and writes of its connections
+    // without blocking, only internalDispatchRequest runs on the thread pool
+    protected class NioServerThread extends Thread {
+        private Selector selector;
+        private Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+        private ServerSocketChannel serverChannel;
+
+        public NioServerThread(ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                // a shared listener is registered with every selector, the one woken first accepts
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                System.out.println("Error while opening server socket channel.");
+                System.exit(1);
+            }
+            while (!isInterrupted()) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.out.println("Error while selecting.");
+                    continue;
+                }
+                // tasks posted by worker threads (finished responses)
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
                 }
-                //serverSocket.close();
             }
-        }
-        private class ClientWorker implements Runnable, IDispatcher {
+            // responses handed over on the way out (503 to requests stop() took from the queue) are still sent,
+            // as far as the sockets take them without blocking
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                task.run();
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ignorable) {}
+        }
+
+        private void accept(ServerSocketChannel serverChannel) {
+            try {
+                SocketChannel client = serverChannel.accept();
+                if (client == null) {
+                    return;
+                }
+                client.configureBlocking(false);
+                openConnections.incrementAndGet();
+                NioConnection connection = new NioConnection(this, client);
+                connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+                connection.updateTimeout(false);
+            } catch (IOException e) {
+                System.out.println("Error while accepting client.");
+            }
+        }
+
+        // on shutdown every idle connection is closed, busy ones close after their responses
+        private void closeIdleConnections() {
+            for (SelectionKey key : selector.keys()) {
+                if (!(key.attachment() instanceof NioConnection)) {
+                    continue;
+                }
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection.isIdle()) {
+                    connection.close();
+                }
+            }
+        }
+
+        // runs task on the selector thread
+        private void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    private class NioConnection {
+        private static final int NO_TIMEOUT = 0;
+        private static final int HEADER_TIMEOUT = 1;
+        private static final int IDLE_TIMEOUT = 2;
+        private static final int WRITE_TIMEOUT = 3;
+        private static final int BODY_TIMEOUT = 4;
+
+        private NioServerThread loop;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private HttpRequestParser parser = new HttpRequestParser(maxHeaderSize);
+        // body being received, decoded from the parser buffer into the pipe its worker reads; bytes after
+        // it are not parsed until it is complete
+        private BodyPipe body;
+        // pooled buffers and file regions, in the order they are sent
+        private Deque<Object> writeQueue = new ArrayDeque<Object>();
+        private boolean closeAfterWrite;
+        private Deque<NioResponseStream> pending = new ArrayDeque<NioResponseStream>();
+        // complete responses whose output is still in writeQueue
+        private int unwritten;
+        private ByteBuffer[] gather = new ByteBuffer[16];
+        private int servedRequests;
+        // what the running timeout waits for, generation tells an expired timeout whether it is still current
+        private int timeoutKind = NO_TIMEOUT;
+        private TimingWheel.Timeout timeout;
+        private int timeoutGeneration;
+
+        public NioConnection(NioServerThread loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        private void read() throws IOException {
+            int read = parser.readFrom(channel);
+            if (read == -1) {
+                close();
+                return;
+            }
+            processBuffer();
+        }
+
+        // dispatches requests whose headers are complete in the read buffer, more than one
+        // at a time only if pipelined requests may be processed concurrently
+        private void processBuffer() {
+            if (draining && isIdle()) {
+                close();
+                return;
+            }
+            boolean progress = receiveBody();
+            while (body == null && !closeAfterWrite && !draining && (pending.isEmpty() || (pipelineConcurrent && pending.size() < pipelineMaxDepth))) {
+                HttpRequestParser.Status status = parser.parse();
+                if (status == HttpRequestParser.Status.INCOMPLETE) {
+                    break;
+                }
+                if (status != HttpRequestParser.Status.COMPLETE) {
+                    // invalid requests are answered only after responses to the ones before them
+                    if (pending.isEmpty()) {
+                        writeQueue.add(ByteBuffer.wrap(status == HttpRequestParser.Status.TOO_LARGE ? HEADER_TOO_LARGE : BAD_REQUEST));
+                        closeAfterWrite = true;
+                    }
+                    break;
+                }
+                BodyDecoder decoder = null;
+                if (BodyDecoder.hasBody(parser)) {
+                    try {
+                        decoder = BodyDecoder.forRequest(parser, maxBodySize);
+                    } catch (BodyDecoder.InvalidBodyException e) {
+                        if (pending.isEmpty()) {
+                            writeQueue.add(ByteBuffer.wrap(e.getStatus() == 413 ? PAYLOAD_TOO_LARGE : BAD_REQUEST));
+                            closeAfterWrite = true;
+                        }
+                        break;
+                    }
+                }
+                BodyPipe requestBody = decoder == null ? null : new BodyPipe(this, decoder);
+                // with concurrent pipelining parser moves on to the next request while this one is processed,
+                // a body is decoded from the parser buffer, so the header is kept in a copy
+                HttpRequestParser request;
+                if (pipelineConcurrent || requestBody != null) {
+                    request = parser.copyRequest();
+                    parser.nextRequest();
+                } else {
+                    request = parser;
+                }
+
+                NioResponseStream response = new NioResponseStream(this);
+                pending.add(response);
+                // request is in flight until its response is written to the socket
+                requestStarted();
+                int served = ++servedRequests;
+                NioRequest task = new NioRequest(request, response, served, requestBody);
+                try {
+                    // execute, not submit, so stop() finds the requests still waiting in the queue
+                    threadPool.execute(task);
+                } catch (RejectedExecutionException e) {
+                    metrics.requestRejected();
+                    task.reject();
+                    break;
+                }
+                if (requestBody != null) {
+                    body = requestBody;
+                    progress |= receiveBody();
+                }
+            }
+            // body turned out to be invalid after its response was written
+            if (closeAfterWrite && isIdle()) {
+                close();
+                return;
+            }
+            // no reading while requests are in flight (except their bodies), pipelined bytes wait in the buffer
+            updateInterest();
+            updateTimeout(progress);
+            if (!writeQueue.isEmpty()) {
+                try {
+                    write();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops;
+            if (!writeQueue.isEmpty()) {
+                // socket is not watched while the file at the head of the queue waits for the disk
+                ops = waitingForDisk() ? 0 : SelectionKey.OP_WRITE;
+            } else if (pending.isEmpty() && !closeAfterWrite) {
+                ops = SelectionKey.OP_READ;
+            } else {
+                ops = 0;
+            }
+            // body is read while its request is processed, as long as the pipe has room
+            if (body != null && body.wantsInput()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        // decodes body bytes waiting in the parser buffer into the pipe, true if any were taken; a body
+        // which turns out to be invalid fails its pipe and the connection is closed after the responses
+        private boolean receiveBody() {
+            if (body == null) {
+                return false;
+            }
+            boolean progress;
+            try {
+                progress = body.receive(parser);
+            } catch (BodyDecoder.InvalidBodyException e) {
+                body.fail(e);
+                body = null;
+                closeAfterWrite = true;
+                return true;
+            }
+            if (body.isReceived()) {
+                body = null;
+            }
+            return progress;
+        }
+
+        // worker took bytes from a full pipe, or doesn't want the rest of the body
+        private void bodyConsumed() {
+            if (channel.isOpen()) {
+                processBuffer();
+            }
+        }
+
+        private boolean waitingForDisk() {
+            return writeQueue.peek() instanceof FileReadRegion && ((FileReadRegion) writeQueue.peek()).next() == null;
+        }
+
+        // a file reader filled a buffer of the region at the head of writeQueue
+        private void fileReadCompleted() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // called on selector thread when a response has new output or is complete, output is
+        // queued for writing strictly in the order requests arrived, so a later response waits
+        // (buffered) until all responses before it are complete
+        private void responseProgress() {
+            while (!pending.isEmpty()) {
+                NioResponseStream response = pending.peek();
+                writeQueue.addAll(response.ready);
+                response.ready.clear();
+                if (!response.complete) {
+                    break;
+                }
+                pending.poll();
+                unwritten++;
+                if (!response.keepAlive) {
+                    // responses to requests after this one are never sent
+                    closeAfterWrite = true;
+                    inFlight.addAndGet(-pending.size());
+                    pending.clear();
+                }
+            }
+            updateInterest();
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // gathering write: header and body buffers go out in as few system calls as possible,
+        // file regions are sent with transferTo straight from the page cache, or from buffers
+        // filled by file readers
+        private void write() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                long written;
+                boolean socketFull;
+                if (writeQueue.peek() instanceof FileRegion) {
+                    FileRegion region = (FileRegion) writeQueue.peek();
+                    written = region.transferTo(channel);
+                    socketFull = region.hasRemaining();
+                } else if (writeQueue.peek() instanceof FileReadRegion) {
+                    ByteBuffer buffer = ((FileReadRegion) writeQueue.peek()).next();
+                    if (buffer == null) {
+                        // fileReadCompleted continues once the read is done
+                        updateInterest();
+                        updateTimeout(true);
+                        return;
+                    }
+                    written = channel.write(buffer);
+                    socketFull = buffer.hasRemaining();
+                } else {
+                    int count = 0;
+                    for (Object chunk : writeQueue) {
+                        if (chunk instanceof FileRegion || chunk instanceof FileReadRegion) {
+                            break;
+                        }
+                        gather[count++] = chunk instanceof BufferRegion ? ((BufferRegion) chunk).buffer : (ByteBuffer) chunk;
+                        if (count == gather.length) {
+                            break;
+                        }
+                    }
+                    written = channel.write(gather, 0, count);
+                    socketFull = gather[count - 1].hasRemaining();
+                    Arrays.fill(gather, 0, count, null);
+                }
+                while (!writeQueue.isEmpty() && isWritten(writeQueue.peek())) {
+                    releaseChunk(writeQueue.poll());
+                }
+                if (socketFull) {
+                    // interest may have been dropped while a file region waited for the disk
+                    updateInterest();
+                    updateTimeout(written > 0);
+                    return; // wait for OP_WRITE
+                }
+            }
+            for (; unwritten > 0; unwritten--) {
+                requestFinished();
+            }
+            if (closeAfterWrite || (draining && pending.isEmpty())) {
+                close();
+                return;
+            }
+            updateInterest();
+            if (pending.isEmpty()) {
+                // everything is answered, next request may already be in the buffer
+                if (!pipelineConcurrent) {
+                    parser.nextRequest();
+                }
+                processBuffer();
+            } else {
+                updateTimeout(false);
+            }
+        }
+
+        // one timeout at a time, chosen by what the connection waits for: the client to read (write stall),
+        // a worker (no timeout), the rest of a request header or the next request on an idle connection
+        // header timeout is not restarted by more header bytes, write timeout is restarted on every progress
+        private void updateTimeout(boolean progress) {
+            int kind;
+            if (!writeQueue.isEmpty()) {
+                kind = WRITE_TIMEOUT;
+            } else if (body != null && body.wantsInput()) {
+                kind = BODY_TIMEOUT;
+            } else if (!pending.isEmpty()) {
+                kind = NO_TIMEOUT;
+            } else if (servedRequests == 0 || parser.hasData()) {
+                kind = HEADER_TIMEOUT;
+            } else {
+                kind = IDLE_TIMEOUT;
+            }
+            if (kind == timeoutKind && !progress) {
+                return;
+            }
+            timeoutKind = kind;
+            cancelTimeout();
+            if (kind == NO_TIMEOUT) {
+                return;
+            }
+            long millis = kind == WRITE_TIMEOUT ? writeTimeout : kind == BODY_TIMEOUT ? bodyTimeout
+                    : kind == HEADER_TIMEOUT ? headerTimeout : keepAliveTimeout * 1000L;
+            int generation = timeoutGeneration;
+            // connection is closed on the selector thread, unless its state changed in the meantime
+            timeout = timeouts.schedule(millis, () -> loop.execute(() -> {
+                if (generation == timeoutGeneration && channel.isOpen()) {
+                    metrics.connectionTimedOut();
+                    close();
+                }
+            }));
+        }
+
+        private void cancelTimeout() {
+            timeoutGeneration++;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+
+        // waiting for the next request with nothing in flight
+        private boolean isIdle() {
+            return pending.isEmpty() && writeQueue.isEmpty();
+        }
+
+        private void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            openConnections.decrementAndGet();
+            inFlight.addAndGet(-(pending.size() + unwritten));
+            cancelTimeout();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignorable) {}
+            if (body != null) {
+                body.fail(new EOFException("Connection closed before the end of request body."));
+                body = null;
+            }
+            while (!writeQueue.isEmpty()) {
+                releaseChunk(writeQueue.poll());
+            }
+        }
+    }
+
+    // request of a nio connection waiting for a worker thread, stop() answers the ones still queued
+    private class NioRequest implements Runnable {
+        private HttpRequestParser request;
+        private NioResponseStream response;
+        private int served;
+        private BodyPipe body;
+        private long queuedAt = System.currentTimeMillis();
+
+        public NioRequest(HttpRequestParser request, NioResponseStream response, int served, BodyPipe body) {
+            this.request = request;
+            this.response = response;
+            this.served = served;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            ClientWorker cw = nioWorkers.get();
+            cw.attach(response, served, body);
+            try {
+                if (waitedTooLong(queuedAt)) {
+                    metrics.queueTimedOut();
+                    cw.sendServiceUnavailable();
+                } else {
+                    cw.processRequest(request);
+                }
+            } finally {
+                cw.closeBody();
+                response.finish(cw.keepAlive);
+                cw.resetRequest();
+            }
+        }
+
+        // request never gets a worker thread, client gets 503 and the connection is closed after it
+        private void reject() {
+            new ClientWorker(response, served).sendServiceUnavailable();
+            response.finish(false);
+        }
+    }
+
+    // first segment of the url path with its slash (/ext/EchoParams -> /ext), workers are mapped by it;
+    // path of a single segment is its own prefix, nothing is allocated for it
+    static String urlStart(String path) {
+        if (!path.startsWith("/")) {
+            return urlStart("/" + path);
+        }
+        int slash = path.indexOf('/', 1);
+        return slash < 0 ? path : path.substring(0, slash);
+    }
+
+    private static boolean isWritten(Object chunk) {
+        if (chunk instanceof FileRegion) {
+            return !((FileRegion) chunk).hasRemaining();
+        }
+        if (chunk instanceof FileReadRegion) {
+            return !((FileReadRegion) chunk).hasRemaining();
+        }
+        if (chunk instanceof BufferRegion) {
+            return !((BufferRegion) chunk).buffer.hasRemaining();
+        }
+        return !((ByteBuffer) chunk).hasRemaining();
+    }
+
+    private void releaseChunk(Object chunk) {
+        if (chunk instanceof FileRegion) {
+            ((FileRegion) chunk).close();
+        } else if (chunk instanceof FileReadRegion) {
+            ((FileReadRegion) chunk).close();
+        } else if (chunk instanceof BufferRegion) {
+            ((BufferRegion) chunk).release.run();
+        } else {
+            directBuffers.release((ByteBuffer) chunk);
+        }
+    }
+
+    // output of one response on nio connection: written into pooled direct buffers, every full buffer
+    // (and everything on flush) is passed to the selector thread which writes it to the socket
+    // files are passed as regions, selector thread sends them when the socket can take more
+    private class NioResponseStream extends OutputStream implements FileSender {
+        private NioConnection connection;
+        // used only by the worker thread
+        private ByteBuffer current;
+        private List<Object> filled = new ArrayList<Object>();
+        private boolean finished = false;
+        // used only by the selector thread
+        private Deque<Object> ready = new ArrayDeque<Object>();
+        private boolean complete = false;
+        private boolean keepAlive;
+
+        public NioResponseStream(NioConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) {
+            if (current == null || !current.hasRemaining()) {
+                nextBuffer();
+            }
+            current.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (current == null || !current.hasRemaining()) {
+                    nextBuffer();
+                }
+                int count = Math.min(len, current.remaining());
+                current.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        // full buffer is sent right away, so large responses are not collected in memory
+        private void nextBuffer() {
+            if (current != null) {
+                current.flip();
+                filled.add(current);
+                handOver(false, false);
+            }
+            current = directBuffers.acquire();
+        }
+
+        @Override
+        public void flush() {
+            if (current != null && current.position() > 0) {
+                current.flip();
+                filled.add(current);
+                current = null;
+            }
+            if (!filled.isEmpty()) {
+                handOver(false, false);
+            }
+        }
+
+        @Override
+        public void sendFile(FileChannel file, long position, long count) {
+            if (current != null && current.position() > 0) {
+                current.flip();
+                filled.add(current);
+                current = null;
+            }
+            if (fileReaders != null) {
+                filled.add(new FileReadRegion(connection, file, position, position + count));
+            } else {
+                filled.add(new FileRegion(file, position, position + count));
+            }
+            handOver(false, false);
+        }
+
+        @Override
+        public void sendBuffer(ByteBuffer buffer, Runnable release) {
+            if (current != null && current.position() > 0) {
+                current.flip();
+                filled.add(current);
+                current = null;
+            }
+            filled.add(new BufferRegion(buffer, release));
+            handOver(false, false);
+        }
+
+        public void finish(boolean keepAlive) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            flush();
+            if (current != null) {
+                directBuffers.release(current);
+                current = null;
+            }
+            handOver(true, keepAlive);
+        }
+
+        private void handOver(boolean complete, boolean keepAlive) {
+            List<Object> batch = filled;
+            filled = new ArrayList<Object>();
+            connection.loop.execute(() -> {
+                if (!connection.channel.isOpen()) {
+                    batch.forEach(SmartHttpServer.this::releaseChunk);
+                    return;
+                }
+                ready.addAll(batch);
+                if (complete) {
+                    this.complete = true;
+                    this.keepAlive = keepAlive;
+                }
+                connection.responseProgress();
+            });
+        }
+    }
+
+    // body of a request on nio connection: selector thread decodes it from the connection's parser into
+    // a bounded ring buffer and the worker reads it from there; socket is not read while the ring is full
+    // closed by the worker when it doesn't want the rest, which is then decoded and dropped
+    private class BodyPipe extends InputStream {
+        private static final int PIPE_SIZE = 65536;
+
+        private NioConnection connection;
+        // used only by the selector thread
+        private BodyDecoder decoder;
+        // worker reading the body waits on received until the selector thread decodes more of it, with
+        // a monitor such wait would keep a virtual thread's carrier busy
+        private ReentrantLock lock = new ReentrantLock();
+        // signalled when bytes arrive, the body ends or fails
+        private Condition received = lock.newCondition();
+        // guarded by the lock
+        private byte[] data = new byte[PIPE_SIZE];
+        private int start;
+        private int count;
+        private boolean ended;
+        private IOException failure;
+        private boolean abandoned;
+        // selector stopped reading because the ring was full
+        private boolean stalled;
+        private byte[] single = new byte[1];
+
+        public BodyPipe(NioConnection connection, BodyDecoder decoder) {
+            this.connection = connection;
+            this.decoder = decoder;
+        }
+
+        // selector thread: decodes bytes waiting in the parser into free space of the ring, true if any were taken
+        private boolean receive(HttpRequestParser parser) throws BodyDecoder.InvalidBodyException {
+            boolean progress = false;
+            while (!decoder.isDone() && parser.hasData()) {
+                int offset;
+                int length;
+                boolean discarded;
+                lock.lock();
+                try {
+                    discarded = abandoned;
+                    if (discarded) {
+                        offset = 0;
+                        length = data.length;
+                    } else {
+                        offset = (start + count) % data.length;
+                        length = count == data.length ? 0 : offset >= start ? data.length - offset : start - offset;
+                        stalled = length == 0;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (length == 0) {
+                    break;
+                }
+                // free part of the ring is not touched by the worker, so it is filled without the lock
+                int produced = parser.decodeBody(decoder, data, offset, length);
+                if (produced == 0 && decoder.consumed() == 0) {
+                    break;
+                }
+                progress = true;
+                lock.lock();
+                try {
+                    if (!discarded && !abandoned) {
+                        count += produced;
+                        received.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (decoder.isDone()) {
+                lock.lock();
+                try {
+                    ended = true;
+                    received.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return progress;
+        }
+
+        private boolean isReceived() {
+            return decoder.isDone();
+        }
+
+        private boolean wantsInput() {
+            lock.lock();
+            try {
+                return !ended && failure == null && !stalled;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void fail(IOException failure) {
+            lock.lock();
+            try {
+                this.failure = failure;
+                received.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (abandoned || ended) {
+                        return -1;
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    try {
+                        received.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                int read = Math.min(len, Math.min(count, data.length - start));
+                System.arraycopy(data, start, b, off, read);
+                start = (start + read) % data.length;
+                count -= read;
+                if (stalled) {
+                    stalled = false;
+                    connection.loop.execute(connection::bodyConsumed);
+                }
+                return read;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            boolean resume;
+            lock.lock();
+            try {
+                if (abandoned) {
+                    return;
+                }
+                abandoned = true;
+                start = 0;
+                count = 0;
+                resume = stalled;
+                stalled = false;
+            } finally {
+                lock.unlock();
+            }
+            if (resume) {
+                connection.loop.execute(connection::bodyConsumed);
+            }
+        }
+    }
+
+    // part of a file waiting to be sent on a nio connection, file is closed when it is sent (or dropped)
+    private static class FileRegion {
+        private FileChannel file;
+        private long position;
+        private long end;
+
+        public FileRegion(FileChannel file, long position, long end) {
+            this.file = file;
+            this.position = position;
+            this.end = end;
+        }
+
+        // sends as much as the socket takes without blocking
+        private long transferTo(SocketChannel channel) throws IOException {
+            long sent = file.transferTo(position, end - position, channel);
+            if (sent == 0 && position >= file.size()) {
+                throw new EOFException("File is shorter than expected.");
+            }
+            position += sent;
+            return sent;
+        }
+
+        private boolean hasRemaining() {
+            return position < end;
+        }
+
+        private void close() {
+            try {
+                file.close();
+            } catch (IOException ignorable) {}
+        }
+    }
+
+    // part of a file waiting to be sent on a nio connection whose selector thread must not touch the disk:
+    // a file reader reads it into pooled direct buffers, the selector thread only writes them to the socket;
+    // reading stays at most READ_AHEAD buffers ahead of the socket, file is closed when it is sent (or dropped)
+    private class FileReadRegion {
+        private static final int READ_AHEAD = 2;
+
+        private NioConnection connection;
+        private FileChannel file;
+        // position of the next read
+        private long position;
+        private long end;
+        // used only by the selector thread
+        private Deque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+        private boolean reading;
+        private boolean closed;
+
+        public FileReadRegion(NioConnection connection, FileChannel file, long position, long end) {
+            this.connection = connection;
+            this.file = file;
+            this.position = position;
+            this.end = end;
+        }
+
+        // buffer to be written next, null while it is being read
+        private ByteBuffer next() {
+            while (!buffers.isEmpty() && !buffers.peek().hasRemaining()) {
+                directBuffers.release(buffers.poll());
+            }
+            readAhead();
+            return buffers.peek();
+        }
+
+        private void readAhead() {
+            if (reading || closed || position >= end || buffers.size() >= READ_AHEAD) {
+                return;
+            }
+            ByteBuffer buffer = directBuffers.acquire();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            long from = position;
+            try {
+                fileReaders.execute(() -> {
+                    IOException failure = null;
+                    try {
+                        while (buffer.hasRemaining()) {
+                            if (file.read(buffer, from + buffer.position()) < 0) {
+                                throw new EOFException("File is shorter than expected.");
+                            }
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    IOException result = failure;
+                    connection.loop.execute(() -> completed(buffer, result));
+                });
+                reading = true;
+            } catch (RejectedExecutionException e) {
+                // server is stopping
+                directBuffers.release(buffer);
+                connection.close();
+            }
+        }
+
+        // runs on the selector thread
+        private void completed(ByteBuffer buffer, IOException failure) {
+            reading = false;
+            if (closed || failure != null) {
+                directBuffers.release(buffer);
+                connection.close();
+                return;
+            }
+            buffer.flip();
+            position += buffer.remaining();
+            buffers.add(buffer);
+            readAhead();
+            connection.fileReadCompleted();
+        }
+
+        private boolean hasRemaining() {
+            if (position < end) {
+                return true;
+            }
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // buffer being read is released when its read completes
+        private void close() {
+            closed = true;
+            buffers.forEach(directBuffers::release);
+            buffers.clear();
+            try {
+                file.close();
+            } catch (IOException ignorable) {}
+        }
+    }
+
+    // buffer which is not from the pool (e.g. view of a mapped file), release runs when it is sent (or dropped)
+    private static class BufferRegion {
+        private ByteBuffer buffer;
+        private Runnable release;
+
+        public BufferRegion(ByteBuffer buffer, Runnable release) {
+            this.buffer = buffer;
+            this.release = release;
+        }
+    }
+
+    // responses to pipelined requests of a blocking connection processed concurrently: the response whose
+    // turn it is goes straight to the connection, the ones behind it are buffered, together at most
+    // pipelineMaxBuffered bytes; a worker whose output doesn't fit waits for its turn
+    private class PipelinedResponses {
+        private OutputStream connection;
+        // workers wait on turnChanged for their turn; a monitor would pin the carrier of a virtual thread
+        // for as long as it waits
+        private ReentrantLock lock = new ReentrantLock();
+        private Condition turnChanged = lock.newCondition();
+        // index of the response being written to the connection
+        private int turn = 0;
+        private long buffered = 0;
+        // no more responses are sent, later ones are dropped
+        private boolean closed = false;
+
+        public PipelinedResponses(OutputStream connection) {
+            this.connection = connection;
+        }
+
+        // true if size bytes of the response were reserved in the buffer, false if it is the response's
+        // turn (its buffered output is already written) and it writes straight to the connection
+        private boolean reserve(PipelinedOutput output, long size) throws IOException {
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("Connection is closed.");
+                    }
+                    if (output.index == turn) {
+                        break;
+                    }
+                    if (buffered + size <= pipelineMaxBuffered) {
+                        buffered += size;
+                        return true;
+                    }
+                    turnChanged.await();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+            output.writePending();
+            return false;
+        }
+
+        private void release(long size) {
+            lock.lock();
+            try {
+                buffered -= size;
+                turnChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isTurn(PipelinedOutput output) {
+            lock.lock();
+            try {
+                return output.index == turn && !closed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void next() {
+            lock.lock();
+            try {
+                turn++;
+                turnChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // workers still waiting for their turn give up
+        private void close() {
+            lock.lock();
+            try {
+                closed = true;
+                turnChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // output of one pipelined response, written by its worker (and by the connection thread once the worker is done)
+    private class PipelinedOutput extends OutputStream implements FileSender {
+        private PipelinedResponses responses;
+        private int index;
+        // output written before the response's turn
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        public PipelinedOutput(PipelinedResponses responses, int index) {
+            this.responses = responses;
+            this.index = index;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (responses.reserve(this, 1)) {
+                pending.write(b);
+            } else {
+                responses.connection.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (responses.reserve(this, len)) {
+                pending.write(b, off, len);
+            } else {
+                responses.connection.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (responses.isTurn(this)) {
+                writePending();
+                responses.connection.flush();
+            }
+        }
+
+        // file is read into the buffer only if it fits, otherwise it is sent from the file at the response's turn
+        @Override
+        public void sendFile(FileChannel file, long position, long count) throws IOException {
+            // stream takes over the file, it is closed also if the response is not sent
+            boolean reserved;
+            try {
+                reserved = responses.reserve(this, count);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            if (!reserved && responses.connection instanceof FileSender) {
+                ((FileSender) responses.connection).sendFile(file, position, count);
+                return;
+            }
+            try (FileChannel channel = file) {
+                OutputStream out = reserved ? pending : responses.connection;
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 16384));
+                while (count > 0) {
+                    buffer.clear().limit((int) Math.min(count, buffer.capacity()));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new EOFException("File is shorter than expected.");
+                    }
+                    out.write(buffer.array(), 0, read);
+                    position += read;
+                    count -= read;
+                }
+            }
+        }
+
+        @Override
+        public void sendBuffer(ByteBuffer buffer, Runnable release) throws IOException {
+            boolean reserved;
+            try {
+                reserved = responses.reserve(this, buffer.remaining());
+            } catch (IOException e) {
+                release.run();
+                throw e;
+            }
+            if (!reserved && responses.connection instanceof FileSender) {
+                ((FileSender) responses.connection).sendBuffer(buffer, release);
+                return;
+            }
+            try {
+                OutputStream out = reserved ? pending : responses.connection;
+                byte[] data = new byte[Math.min(buffer.remaining(), 16384)];
+                while (buffer.hasRemaining()) {
+                    int count = Math.min(buffer.remaining(), data.length);
+                    buffer.get(data, 0, count);
+                    out.write(data, 0, count);
+                }
+            } finally {
+                release.run();
+            }
+        }
+
+        // output buffered before the response's turn goes to the connection first
+        private void writePending() throws IOException {
+            int size = pending.size();
+            if (size > 0) {
+                pending.writeTo(responses.connection);
+                pending.reset();
+                responses.release(size);
+            }
+        }
+    }
+
+        private class ClientWorker implements Runnable, IDispatcher {
+
+            private Socket csocket;
+            private InputStream istream;
+            private OutputStream ostream;
+            private HttpRequestParser parser;
+            // request being served, its headers are read while dispatching
+            private HttpRequestParser currentRequest;
+            private boolean http11;
+            private String host;
+            // maps live as long as the worker, they are emptied after every request
+            private Map<String,String> params = new HashMap<String, String>();
+            private Map<String,String> tempParams = new HashMap<String, String>();
+            // map of the session, set by checkSession
+            private Map<String,String> permParams;
+            private List<RCCookie> outputCookies = new ArrayList<RequestContext.RCCookie>();
+            // body of the request (nio: piped by the selector thread) and parts of a multipart form body
+            private InputStream requestBody;
+            private List<FormPart> parts = new ArrayList<FormPart>();
+            private String SID;
+            // context of the current response, null until the response starts
+            private RequestContext context = null;
+            // context of the previous response, reset and reused by the next one
+            private RequestContext reusableContext;
+            private int servedRequests = 0;
+            private boolean keepAlive = false;
+            private boolean responseSent = false;
+            private long queuedAt;
+            // waiting for the next request, such connection may be closed by stop() at any time
+            private AtomicBoolean idle = new AtomicBoolean(true);
+            private TimingWheel.Timeout timeout;
+            public ClientWorker(Socket csocket) {
+                super();
+                this.csocket = csocket;
+                this.queuedAt = System.currentTimeMillis();
+            }
+
+            // used by the nio transport, request header is already read by the event loop
+            public ClientWorker(OutputStream ostream, int servedRequests) {
+                super();
+                attach(ostream, servedRequests, null);
+            }
+
+            // nio worker of a pool thread takes the next request, possibly from another connection
+            private void attach(OutputStream ostream, int servedRequests, InputStream requestBody) {
+                this.ostream = ostream;
+                this.servedRequests = servedRequests;
+                this.requestBody = requestBody;
+            }
+
+            @Override
+            public void run() {
+                connections.add(this);
+                try {
+                    serveConnection();
+                } finally {
+                    connections.remove(this);
+                    openConnections.decrementAndGet();
+                }
+            }
+
+            private void serveConnection() {
+                if (waitedTooLong(queuedAt)) {
+                    metrics.queueTimedOut();
+                    rejectConnection(csocket);
+                    return;
+                }
+                istream = null;
+                ostream = null;
+                try{
+                    // obtain input stream from socket
+                    // obtain output stream from socket
+                    istream = csocket.getInputStream();
+                    ConnectionOutputStream output = new ConnectionOutputStream(csocket.getOutputStream(), csocket.getChannel(), heapBuffers);
+                    output.setWriteTimeout(timeouts, writeTimeout, this::timedOut);
+                    ostream = output;
+                }
+                catch (IOException e) {
+                    //System.out.println("Error while getting input/output stream.");
+                    closeSocket();
+                    return;
+                }
+                // parser lives as long as the connection, so bytes of the next request are not lost
+                parser = new HttpRequestParser(maxHeaderSize);
+                // serve requests until client or server decides to close the connection
+                while (true) {
+                    // Then read complete request header from your client in separate method...
+                    HttpRequestParser.Status status = readRequest();
+                    if (status == null || !idle.compareAndSet(true, false)) {
+                        break; // client closed the connection, it was idle for too long or server is stopping
+                    }
+                    if (status == HttpRequestParser.Status.TOO_LARGE) {
+                        sendError(431, "Request Header Fields Too Large");
+                        break;
+                    }
+                    if (status == HttpRequestParser.Status.MALFORMED) {
+                        sendError(400, "Bad Request");
+                        break;
+                    }
+                    // bytes after a request with a body are its body, not pipelined requests
+                    if (pipelineConcurrent && parser.hasPipelinedData() && !BodyDecoder.hasBody(parser)) {
+                        // pipelined requests already waiting in the buffer are dispatched together
+                        List<HttpRequestParser> pipelined = new ArrayList<HttpRequestParser>();
+                        do {
+                            pipelined.add(parser.copyRequest());
+                            parser.nextRequest();
+                        } while (pipelined.size() < pipelineMaxDepth && parser.parse() == HttpRequestParser.Status.COMPLETE
+                                && !BodyDecoder.hasBody(parser));
+                        processPipelined(pipelined);
+                    } else {
+                        HttpRequestParser request = parser;
+                        if (BodyDecoder.hasBody(parser)) {
+                            // body is read through the parser buffer, so the header is kept in a copy
+                            request = parser.copyRequest();
+                            parser.nextRequest();
+                        }
+                        servedRequests++;
+                        requestStarted();
+                        try {
+                            processRequest(request);
+                        } finally {
+                            closeBody();
+                            requestFinished();
+                        }
+                        parser.nextRequest();
+                    }
+                    if (!keepAlive) {
+                        break;
+                    }
+                    resetRequest();
+                    idle.set(true);
+                    if (draining) {
+                        break;
+                    }
+                    // thread is given to a connection waiting in the queue instead of waiting for the next request
+                    if (getQueueDepth() > 0 && idle.compareAndSet(true, false)) {
+                        break;
+                    }
+                }
+                closeSocket();
+            }
+
+            // requests are processed concurrently and responses are written in request order: the first one
+            // straight to the connection, the ones behind it into a bounded buffer until their turn
+            private void processPipelined(List<HttpRequestParser> requests) {
+                PipelinedResponses responses = new PipelinedResponses(ostream);
+                List<PipelinedOutput> outputs = new ArrayList<PipelinedOutput>();
+                List<ClientWorker> workers = new ArrayList<ClientWorker>();
+                List<Future<?>> results = new ArrayList<Future<?>>();
+                for (HttpRequestParser request : requests) {
+                    PipelinedOutput output = new PipelinedOutput(responses, outputs.size());
+                    ClientWorker worker = new ClientWorker(output, ++servedRequests);
+                    outputs.add(output);
+                    workers.add(worker);
+                    requestStarted();
+                    try {
+                        results.add(pipelinePool.submit(() -> {
+                            try {
+                                worker.processRequest(request);
+                            } finally {
+                                requestFinished();
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        // server is stopping, requests which are not submitted are not answered
+                        inFlight.decrementAndGet();
+                        break;
+                    }
+                }
+                for (int i = 0; i < results.size(); i++) {
+                    try {
+                        results.get(i).get();
+                        // response completed before its turn is still (partly) in the buffer
+                        outputs.get(i).flush();
+                    } catch (Exception e) {
+                        keepAlive = false;
+                        break;
+                    }
+                    // responses after one which closes the connection are never sent
+                    keepAlive = workers.get(i).keepAlive;
+                    if (!keepAlive) {
+                        break;
+                    }
+                    responses.next();
+                }
+                responses.close();
+            }
+
+            private void resetRequest() {
+                params.clear();
+                tempParams.clear();
+                permParams = null;
+                outputCookies.clear();
+                requestBody = null;
+                context = null;
+                currentRequest = null;
+                host = null;
+                SID = null;
+                responseSent = false;
+            }
+
+            private void closeSocket() {
+                try {
+                    csocket.close();
+                } catch (IOException ignorable) {}
+            }
 
-            private Socket csocket;
-            private InputStream istream;
-            private OutputStream ostream;
-            private String version;
-            private String method;
-            private String host;
-            private Map<String,String> params = new HashMap<String, String>();
-            private Map<String,String> tempParams = new HashMap<String, String>();
-            private Map<String,String> permParams = new HashMap<String, String>();
-            private List<RCCookie> outputCookies = new ArrayList<RequestContext.RCCookie>();
-            private String SID;
-            private RequestContext context = null;
-            public ClientWorker(Socket csocket) {
-                super();
-                this.csocket = csocket;
+            // a blocked read or write fails when the socket is closed, so the worker thread is released
+            private void timedOut() {
+                metrics.connectionTimedOut();
+                closeSocket();
             }
 
-            @Override
-            public void run() {
-                istream = null;
-                ostream = null;
-                try{
-                    // obtain input stream from socket
-                    // obtain output stream from socket
-                    istream = csocket.getInputStream();
-                    ostream = csocket.getOutputStream();
-                }
-                catch (IOException e) {
-                    //System.out.println("Error while getting input/output stream.");
-                    writeToOutput("HTTP/1.1 400 Bad Request\r\n");
-                    return;
-                }
-                // Then read complete request header from your client in separate method...
-                List<String> request = readRequest();
-                 // If header is invalid (less then a line at least) return response status 400
-                if (request.size() < 1) {
-                    //System.out.println("Request is empty.");
-                    writeToOutput("HTTP/1.1 400 Bad Request\r\n");
-                    return;
+            private void armTimeout(long millis) {
+                cancelTimeout();
+                timeout = timeouts.schedule(millis, this::timedOut);
+            }
+
+            private void cancelTimeout() {
+                if (timeout != null) {
+                    timeout.cancel();
+                    timeout = null;
                 }
-                String firstLine = request.get(0);
-                // Extract (method, requestedPath, version) from firstLine
-                String[] firstLineSplitted = firstLine.split(" ");
-                if (firstLineSplitted.length != 3) {
-                    //System.out.println("First line expected 3 elements but got " + firstLineSplitted.length + ".");
-                    writeToOutput("HTTP/1.1 400 Bad Request\r\n");
-                    return;
+            }
+
+            private void closeIfIdle() {
+                if (idle.compareAndSet(true, false)) {
+                    closeSocket();
                 }
-                String method = firstLineSplitted[0];
-                String requestedPath = firstLineSplitted[1];
-                String version = firstLineSplitted[2];
+            }
 
-                this.method = method;
-                this.version = version;
+            // closes the connection if it is idle after a response, not one whose first request is still coming
+            private boolean closeIfKeptAlive() {
+                // servedRequests is written before idle is set, so it is read after idle
+                if (!idle.get() || servedRequests == 0 || !idle.compareAndSet(true, false)) {
+                    return false;
+                }
+                closeSocket();
+                return true;
+            }
 
-                // if method not GET or version not HTTP/1.0 or HTTP/1.1 return response status 400
-                if (!method.equals("GET")) {
-                    //System.out.println("Method " + method + " is not supported.");
-                    writeToOutput("HTTP/1.1 400 Bad Request\r\n");
+            private void processRequest(HttpRequestParser request) {
+                currentRequest = request;
+                // method, path and version are compared in place, without creating Strings
+                // if method not GET or POST or version not HTTP/1.0 or HTTP/1.1 return response status 400
+                if (!request.method().contentEquals("GET") && !request.method().contentEquals("POST")) {
+                    sendError(400, "Bad Request");
                     return;
                 }
-                if (!version.equals("HTTP/1.1") && !version.equals("HTTP/1.0")) {
-                    writeToOutput("HTTP/1.1 400 Bad Request\r\n");
+                http11 = request.version().contentEquals("HTTP/1.1");
+                if (!http11 && !request.version().contentEquals("HTTP/1.0")) {
+                    sendError(400, "Bad Request");
                     return;
                 }
 
-                // Go through headers, and if there is header “Host: xxx”, assign host property
-                // to trimmed value after “Host:”; else, set it to server’s domainName
-                // If xxx is of form some-name:number, just remember “some-name”-part
-                for (String headerLine : request){
-                    if (headerLine.startsWith("Host:")) {
-                        String host = headerLine.split(" ")[1];
-                        if (host.contains(":")) {
-                            host = host.split(":")[0].trim();
-                        }
-                        this.host = host;
-                    }
+                // HTTP/1.1 connections are persistent unless client says otherwise, HTTP/1.0 ones only on request
+                // (Connection is a list of tokens, such as "keep-alive, Upgrade")
+                HttpRequestParser.Slice connection = request.header("Connection");
+                if (http11) {
+                    keepAlive = connection == null || !connection.containsToken("close");
+                } else {
+                    keepAlive = connection != null && connection.containsToken("keep-alive");
+                }
+                if (servedRequests >= keepAliveMaxRequests || draining) {
+                    keepAlive = false;
                 }
 
-                if (this.host == null) {
+                // if there is header “Host: xxx”, assign host property to value after “Host:”;
+                // else, set it to server’s domainName
+                // If xxx is of form some-name:number, just remember “some-name”-part
+                HttpRequestParser.Slice hostHeader = request.header("Host");
+                if (hostHeader != null && !hostHeader.isEmpty()) {
+                    int colon = hostHeader.indexOf(':');
+                    this.host = colon < 0 ? hostHeader.toString() : hostHeader.toString().substring(0, colon);
+                } else {
                     this.host = domainName;
                 }
 
                 //when you process clients request, before doing anything else (before calling parseParameters) call
-                //the method checkSession with a list of header lines
-                synchronized (sessions) {
-                    checkSession(request);
-                }
+                //the method checkSession with request headers
+                checkSession(request);
 
-                String path; String paramString;
-                // (path, paramString) = split requestedPath to path and parameterString
-                
-                if (requestedPath.contains("?")) {
-                    String[] requestedPathSplitted = requestedPath.split("\\?");
-                    path = requestedPathSplitted[0];
-                    paramString = requestedPathSplitted[1];
-                } else {
-                    path = requestedPath;
-                    paramString = null;
-                }
+                String path = request.path().toString();
+                String paramString = request.query().isEmpty() ? null : request.query().toString();
                 // parseParameters(paramString); ==> your method to fill map parameters
                 try {
                     parseParameters(paramString);
                 } catch (IllegalArgumentException e) {
                     return;
                 }
+                if (!receiveBody(request)) {
+                    return;
+                }
 
                 
                 try {
 					internalDispatchRequest(path, true);
+					finishResponse();
 				} catch (Exception e) {
-					return;
+					// if part of the response is already sent, connection can only be closed
+					if (responseSent || (context != null && context.isHeaderGenerated())) {
+						keepAlive = false;
+					} else {
+						sendError(500, "Internal Server Error");
+					}
 				}
             }
+
+            // body is opened (blocking: read through the connection's parser), form bodies are read at once:
+            // their fields become parameters, their files parts; false if a response was already sent
+            private boolean receiveBody(HttpRequestParser request) {
+                try {
+                    if (requestBody == null && parser != null) {
+                        BodyDecoder decoder = BodyDecoder.forRequest(request, maxBodySize);
+                        if (decoder == null) {
+                            return true;
+                        }
+                        requestBody = new RequestBody(parser, bodyInput(), decoder);
+                    }
+                    if (requestBody == null) {
+                        return true;
+                    }
+                    HttpRequestParser.Slice expect = request.header("Expect");
+                    if (http11 && expect != null && expect.equalsIgnoreCase("100-continue")) {
+                        ostream.write(CONTINUE);
+                        ostream.flush();
+                    }
+                    HttpRequestParser.Slice contentType = request.header("Content-Type");
+                    String type = contentType == null ? "" : contentType.toString().toLowerCase(Locale.ROOT);
+                    if (type.startsWith("application/x-www-form-urlencoded")) {
+                        FormParser.parseUrlEncoded(requestBody, params, formMemoryThreshold);
+                    } else if (type.startsWith("multipart/form-data")) {
+                        String boundary = FormParser.boundary(contentType.toString());
+                        if (boundary == null) {
+                            sendError(400, "Bad Request");
+                            return false;
+                        }
+                        parts = FormParser.parseMultipart(requestBody, boundary, formMemoryThreshold, uploadDirectory);
+                        for (FormPart part : parts) {
+                            // fields larger than formMemoryThreshold were already refused with 413
+                            if (part.getFileName() == null && part.getName() != null) {
+                                params.put(part.getName(), part.getString());
+                            }
+                        }
+                    }
+                    return true;
+                } catch (BodyDecoder.InvalidBodyException e) {
+                    sendError(e.getStatus(), e.getMessage());
+                    return false;
+                } catch (IOException e) {
+                    // client went away or was too slow
+                    keepAlive = false;
+                    return false;
+                }
+            }
+
+            // socket input of a blocking connection; every read of the body may wait bodyTimeout
+            private InputStream bodyInput() {
+                return new FilterInputStream(istream) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        armTimeout(bodyTimeout);
+                        try {
+                            return super.read(b, off, len);
+                        } finally {
+                            cancelTimeout();
+                        }
+                    }
+                };
+            }
+
+            // rest of the body is skipped (nio: dropped by the selector thread), so the next request
+            // can be read, and uploaded files are deleted
+            private void closeBody() {
+                // connection which is closed anyway doesn't wait for the rest
+                if (requestBody != null && keepAlive) {
+                    try {
+                        requestBody.close();
+                    } catch (IOException e) {
+                        keepAlive = false;
+                    }
+                }
+                if (!parts.isEmpty()) {
+                    parts.forEach(FormPart::delete);
+                    parts = new ArrayList<FormPart>();
+                }
+            }
+
+            // every response must be complete (known length or last chunk) before the next one starts
+            private void finishResponse() throws IOException {
+                if (responseSent) {
+                    return;
+                }
+                if (context == null) {
+                    sendError(500, "Internal Server Error");
+                    return;
+                }
+                responseSent = true;
+                context.finish();
+                if (!context.isKeepAlive()) {
+                    keepAlive = false;
+                }
+            }
+
+            // context of a new response, the one of the previous response is reused with its buffers
+            private RequestContext newContext() {
+                if (reusableContext == null) {
+                    reusableContext = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, "");
+                } else {
+                    reusableContext.reset(ostream, permParams, "");
+                }
+                reusableContext.setKeepAlive(keepAlive, http11);
+                reusableContext.setRequestBody(requestBody, parts);
+                return reusableContext;
+            }
+
+            private RequestContext createContext() {
+                RequestContext rc = newContext();
+                rc.setBufferSize(heapBuffers.getBufferSize());
+                rc.setAssetIndex(webrootIndex);
+                if (compression != null) {
+                    // dynamic output is compressed while it is written, static files have gzip sidecars
+                    rc.setCompression(compression, compression.negotiate(acceptEncoding()));
+                }
+                return rc;
+            }
             
             private void internalDispatchRequest(String urlPath, boolean directCall) throws Exception {
                 
+                String urlStart = urlStart(urlPath);
                 if (urlPath.startsWith("/")) {
                     urlPath = urlPath.substring(1);
                 }
 
-
-                String urlStart = "/" + urlPath.split("/")[0];
                 
                 if (urlStart.equals("/private") && directCall) {
-                    writeToOutput("HTTP/1.1 404 Not found Error\r\n");
+                    sendError(404, "Not found Error");
                     return;
                 }
 
                 if (urlStart.equals("/ext")){
                     String className = urlPath.substring(4);
                     String fqcn = "hr.fer.zemris.java.webserver.workers." + className;
+                    IWebWorker iww;
                     try {
                         Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
                         Object newObject = referenceToClass.getDeclaredConstructor().newInstance();
-                        IWebWorker iww = (IWebWorker)newObject;
-                        if (context == null) {
-                            context = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, "");
-                        }
-                        iww.processRequest(context);
-                        ostream.flush();
-                        ostream.close();
-                        return;
+                        iww = (IWebWorker)newObject;
                     } catch (Exception e) {
-                        writeToOutput("HTTP/1.1 404 Not found Error\r\n");
+                        sendError(404, "Not found Error");
                         return;
                     }
+                    if (context == null) {
+                        context = createContext();
+                    }
+                    iww.processRequest(context);
+                    return;
                 }
                 
                 if (urlStart.equals("/calc")){
                     SumWorker iww = new SumWorker();
                     if (context == null) {
-                        context = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, "");
+                        context = createContext();
                     }
                     iww.processRequest(context);
-                    ostream.flush();
-                    ostream.close();
                     return;
                 }
                 
                 if(urlStart.equals("/index2.html")) {
                     Home iww = new Home();
                     if (context == null) {
-                        context = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, "");
+                        context = createContext();
                     }
                     iww.processRequest(context);
-                    ostream.flush();
-                    ostream.close();
                     return;
                 }
                 
                 if(urlStart.equals("/setbgcolor")) {
                 	BgColorWorker iww = new BgColorWorker();
                 	if (context == null) {
-                        context = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, "");
+                        context = createContext();
                     }
                 	iww.processRequest(context);
-                    ostream.flush();
-                    ostream.close();
                     return;
                 }
 
@@ -356,16 +2253,52 @@ public class SmartHttpServer {
                 IWebWorker worker = workersMap.get(urlStart);
                 if (worker != null) {
                     if (context == null) {
-                        context = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, "");
+                        context = createContext();
                     }
                     worker.processRequest(context);
-                    ostream.flush();
-                    ostream.close();
                     return;
                 }
             
             
-                File file = checkIfFileOkay(urlPath);
+                // range of a file is served from the file itself, cached entry only holds the whole file
+                HttpRequestParser.Slice rangeHeader = currentRequest == null ? null : currentRequest.header("Range");
+
+                // fingerprinted url (/images/bateman1.<hash>.jpg) names the file with that content,
+                // such response never changes, so clients may keep it forever; url with a hash which is
+                // not current any more stays as it is and is not found
+                // (immutable only while the served version is the indexed one, the index and the caches
+                // are updated one after another when the file changes)
+                long indexedModified = -1;
+                if (webrootIndex != null) {
+                    String plainPath = webrootIndex.unfingerprint(urlPath);
+                    WebrootIndex.IndexedFile indexed = plainPath == null ? null : webrootIndex.get(plainPath);
+                    if (indexed != null) {
+                        urlPath = plainPath;
+                        indexedModified = indexed.getLastModified();
+                    }
+                }
+
+                // cached static files are served without touching the filesystem
+                // (both urls of a file share its entry, the entry holds a header for each)
+                if (staticCache != null && rangeHeader == null) {
+                    StaticFileCache.Entry cached = staticCache.get(cacheKey(urlPath));
+                    boolean immutable = cached != null && cached.getLastModified() == indexedModified;
+                    if (cached != null && cached.getGzipped() != null && acceptsGzip()) {
+                        cached = cached.getGzipped();
+                    }
+                    if (cached != null) {
+                        RequestContext rc = newContext();
+                        context = rc;
+                        if (notModified(cached.getEtag(), cached.getLastModified())) {
+                            sendNotModified(rc, cached.getEtag(), cached.getLastModified());
+                            return;
+                        }
+                        rc.writePrepared(immutable ? cached.getImmutableHeader() : cached.getHeader(), cached.getBody());
+                        return;
+                    }
+                }
+
+                ResolvedFile file = checkIfFileOkay(urlPath);
                 
                 if(file == null) {
                     return;
@@ -377,104 +2310,399 @@ public class SmartHttpServer {
                 
                 // if file is smartscript, execute it so it writes into output stream
                 if(fileExtension.equals("smscr")) {
-                    String documentBody = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                    String documentBody = new String(Files.readAllBytes(file.getPath()), StandardCharsets.UTF_8);
                     DocumentNode node = new SmartScriptParser(documentBody).getDocumentNode();
-                    RequestContext context = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, "");
+                    // script dispatched to by a worker writes into the worker's response
+                    if (context == null) {
+                        context = createContext();
+                    }
                     SmartScriptEngine engine = new SmartScriptEngine(node, context);
                     engine.execute();
-                    ostream.flush();
-                    ostream.close();
                     return;
                 }
 
                 // else treat it as normal file
 
-                // find in mimeTypes map appropriate mimeType for current file extension
-                // (you filled that map during the construction of SmartHttpServer from mime.properties)
-                // if no mime type found, assume application/octet-stream
-                String mimeType = mimeTypes.get(fileExtension);
-                if (mimeType == null) {
-                    mimeType = "application/octet-stream";
+                // mime type was found in mimeTypes map when the path was resolved
+                String mimeType = file.getMimeType();
+
+                // precompressed sidecar (index.html.gz) is sent instead of the file to clients accepting gzip
+                boolean compressible = compressibleTypes.contains(mimeType);
+                boolean gzip = file.getGzipped() != null && acceptsGzip();
+                ResolvedFile served = gzip ? file.getGzipped() : file;
+                boolean immutable = file.getLastModified() == indexedModified;
+
+                RequestContext rc = staticContext(newContext(), mimeType, compressible, gzip, immutable);
+                context = rc;
+
+                // validators let clients revalidate their copy instead of downloading it again
+                // (each encoding has its own, sidecar is a different file)
+                if (notModified(served.getEtag(), served.getLastModified())) {
+                    sendNotModified(rc, served.getEtag(), served.getLastModified());
+                    return;
+                }
+                rc.setHeader("ETag", served.getEtag());
+                rc.setHeader("Last-Modified", httpDate(served.getLastModified()));
+
+                // range is ignored if the file changed since the client got its first part (If-Range)
+                if (rangeHeader != null && ifRangeMatches(served.getEtag(), served.getLastModified())) {
+                    List<ByteRange> ranges = ByteRange.parse(rangeHeader.toString(), served.getSize());
+                    if (ranges != null) {
+                        sendRanges(rc, served, ranges);
+                        return;
+                    }
                 }
 
-                // create a rc = new RequestContext(...); set mime-type; set status to 200
-                // If you want, you can modify RequestContext to allow you to add additional headers
-                // so that you can add “Content-Length: 12345” if you know that file has 12345 bytes
-                // open file, read its content and write it to rc (that will generate header and send
-                // file bytes to client)
+                // small files are read once and kept in the cache with their encoded header,
+                // together with their sidecar
+                if (staticCache != null && staticCache.accepts(file.getSize())) {
+                    StaticFileCache.Entry entry = cacheFile(file, compressible);
+                    if (entry == null) {
+                        sendError(500, "Internal Server Error");
+                        return;
+                    }
+                    if (gzip && entry.getGzipped() != null) {
+                        entry = entry.getGzipped();
+                    }
+                    rc.writePrepared(immutable ? entry.getImmutableHeader() : entry.getHeader(), entry.getBody());
+                    return;
+                }
+                sendFile(rc, served);
+            }
 
-                RequestContext rc = new RequestContext(ostream, params, permParams, outputCookies);
+            // create a rc = new RequestContext(...); set mime-type; set status to 200
+            // If you want, you can modify RequestContext to allow you to add additional headers
+            // so that you can add “Content-Length: 12345” if you know that file has 12345 bytes
+            private RequestContext staticContext(RequestContext rc, String mimeType, boolean compressible, boolean gzip, boolean immutable) {
                 rc.setMimeType(mimeType);
                 rc.setStatusCode(200);
+                rc.setHeader("Accept-Ranges", "bytes");
+                if (compressible) {
+                    // caches must not give the gzip version to clients which didn't ask for it
+                    rc.setHeader("Vary", "Accept-Encoding");
+                }
+                if (gzip) {
+                    rc.setHeader("Content-Encoding", "gzip");
+                }
+                if (immutable) {
+                    rc.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+                }
+                return rc;
+            }
 
+            // reads the file and its sidecar into a cache entry, null if it can't be read
+            private StaticFileCache.Entry cacheFile(ResolvedFile file, boolean compressible) {
+                // generation is read first, so content changed while it is read is not cached
+                long generation = staticCache.generation();
                 try {
-                    byte[] fileBytes = Files.readAllBytes(file.toPath());
-                    rc.write(fileBytes);
-                    ostream.flush();
-                    ostream.close();
-                    //csocket.close();
+                    StaticFileCache.Entry gzipped = null;
+                    if (file.getGzipped() != null) {
+                        gzipped = prepareEntry(file.getGzipped(), true, true, null);
+                    }
+                    StaticFileCache.Entry entry = prepareEntry(file, compressible, false, gzipped);
+                    staticCache.put(file.getPath(), entry, generation);
+                    return entry;
                 } catch (IOException e) {
-                    writeToOutput("HTTP/1.1 500 Internal Server Error\r\n");
+                    return null;
+                }
+            }
+
+            // context which only encodes the header of a cache entry, the response's context is in use
+            private RequestContext entryContext() {
+                return new RequestContext(ostream, params, permParams, outputCookies);
+            }
+
+            private StaticFileCache.Entry prepareEntry(ResolvedFile file, boolean compressible, boolean gzip, StaticFileCache.Entry gzipped) throws IOException {
+                byte[] body = Files.readAllBytes(file.getPath());
+                byte[] header = entryHeader(file, body.length, staticContext(entryContext(), file.getMimeType(), compressible, gzip, false));
+                byte[] immutableHeader = entryHeader(file, body.length, staticContext(entryContext(), file.getMimeType(), compressible, gzip, true));
+                return new StaticFileCache.Entry(header, immutableHeader, body, file.getEtag(), file.getLastModified(), gzipped);
+            }
+
+            private byte[] entryHeader(ResolvedFile file, int length, RequestContext rc) {
+                rc.setHeader("ETag", file.getEtag());
+                rc.setHeader("Last-Modified", httpDate(file.getLastModified()));
+                rc.setContentLength((long) length);
+                return rc.encodeEntityHeader();
+            }
+
+            // open file, read its content and write it to rc (that will generate header and send
+            // file bytes to client)
+            private void sendFile(RequestContext rc, ResolvedFile file) throws IOException {
+
+                // large files are sent from a mapping shared with other downloads of the same file
+                if (mappedFiles != null && mappedFiles.accepts(file.getSize())) {
+                    MappedFileCache.MappedFile mapped;
+                    try {
+                        mapped = mappedFiles.acquire(file.getPath());
+                    } catch (IOException e) {
+                        sendError(500, "Internal Server Error");
+                        return;
+                    }
+                    rc.setContentLength(mapped.size());
+                    rc.writeBuffer(mapped.buffer(), mapped::release);
+                    return;
+                }
+
+                // other files are not read into memory, connection streams send them straight to the socket
+                FileChannel fileChannel = openFile(file);
+                if (fileChannel == null) {
+                    return;
+                }
+                long fileSize = fileChannel.size();
+                rc.setContentLength(fileSize);
+                rc.writeFile(fileChannel, 0, fileSize);
+            }
+
+            // 206 with one range, multipart/byteranges with more of them, 416 if none is satisfiable;
+            // every range is sent straight from its offset in the file
+            private void sendRanges(RequestContext rc, ResolvedFile file, List<ByteRange> ranges) throws IOException {
+                long fileSize = file.getSize();
+                if (ranges.isEmpty()) {
+                    rc.setStatusCode(416);
+                    rc.setStatusText("Range Not Satisfiable");
+                    rc.setHeader("Content-Range", "bytes */" + fileSize);
+                    rc.setContentLength(0L);
+                    return;
+                }
+                rc.setStatusCode(206);
+                rc.setStatusText("Partial Content");
+
+                if (ranges.size() == 1) {
+                    ByteRange range = ranges.get(0);
+                    FileChannel fileChannel = openFile(file);
+                    if (fileChannel == null) {
+                        return;
+                    }
+                    rc.setHeader("Content-Range", range.contentRange(fileSize));
+                    rc.setContentLength(range.length());
+                    rc.writeFile(fileChannel, range.getFirst(), range.length());
                     return;
                 }
+
+                String boundary = Long.toHexString(sessionRandom.nextLong() & Long.MAX_VALUE);
+                // part headers are prepared first, so the length of the whole body is known
+                List<byte[]> partHeaders = new ArrayList<byte[]>();
+                long contentLength = 0;
+                for (ByteRange range : ranges) {
+                    byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                            + "Content-Type: " + file.getMimeType() + "\r\n"
+                            + "Content-Range: " + range.contentRange(fileSize) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    partHeaders.add(partHeader);
+                    contentLength += partHeader.length + range.length();
+                }
+                byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                contentLength += end.length;
+
+                rc.setMimeType("multipart/byteranges; boundary=" + boundary);
+                rc.setContentLength(contentLength);
+                for (int i = 0; i < ranges.size(); i++) {
+                    rc.write(partHeaders.get(i));
+                    // each part gets its own channel, writeFile closes it once the part is sent (or fails);
+                    // it is opened only now, so a failed write of the part header can't leak it
+                    FileChannel fileChannel = FileChannel.open(file.getPath(), StandardOpenOption.READ);
+                    rc.writeFile(fileChannel, ranges.get(i).getFirst(), ranges.get(i).length());
+                }
+                rc.write(end);
+            }
+
+            private FileChannel openFile(ResolvedFile file) {
+                try {
+                    return FileChannel.open(file.getPath(), StandardOpenOption.READ);
+                } catch (IOException e) {
+                    sendError(500, "Internal Server Error");
+                    return null;
+                }
+            }
+
+            private String acceptEncoding() {
+                HttpRequestParser.Slice acceptEncoding = currentRequest == null ? null : currentRequest.header("Accept-Encoding");
+                return acceptEncoding == null ? null : acceptEncoding.toString();
+            }
+
+            // gzip (or x-gzip, or *) listed in Accept-Encoding without q=0
+            private boolean acceptsGzip() {
+                String acceptEncoding = acceptEncoding();
+                return acceptEncoding != null && ResponseCompression.qValue(acceptEncoding, ResponseCompression.GZIP) > 0;
+            }
+
+            // If-None-Match takes precedence over If-Modified-Since, dates have a resolution of one second
+            private boolean notModified(String etag, long lastModified) {
+                HttpRequestParser.Slice ifNoneMatch = currentRequest == null ? null : currentRequest.header("If-None-Match");
+                if (ifNoneMatch != null) {
+                    for (String tag : ifNoneMatch.toString().split(",")) {
+                        tag = tag.trim();
+                        // weak comparison, W/ prefix is ignored
+                        if (tag.startsWith("W/")) {
+                            tag = tag.substring(2);
+                        }
+                        if (tag.equals("*") || tag.equals(etag)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                HttpRequestParser.Slice ifModifiedSince = currentRequest == null ? null : currentRequest.header("If-Modified-Since");
+                if (ifModifiedSince == null) {
+                    return false;
+                }
+                long since = parseHttpDate(ifModifiedSince.toString());
+                return since >= 0 && lastModified / 1000 <= since;
+            }
+
+            private void sendNotModified(RequestContext rc, String etag, long lastModified) {
+                rc.setStatusCode(304);
+                rc.setStatusText("Not Modified");
+                rc.setHeader("ETag", etag);
+                rc.setHeader("Last-Modified", httpDate(lastModified));
+            }
+
+            // If-Range holds the entity tag or the date of the version the client already has part of;
+            // only a strong tag or the exact date matches
+            private boolean ifRangeMatches(String etag, long lastModified) {
+                HttpRequestParser.Slice ifRange = currentRequest.header("If-Range");
+                if (ifRange == null) {
+                    return true;
+                }
+                String value = ifRange.toString().trim();
+                if (value.startsWith("\"") || value.startsWith("W/")) {
+                    return value.equals(etag);
+                }
+                return parseHttpDate(value) == lastModified / 1000;
             }
             
             public void dispatchRequest(String urlPath) throws Exception {
                 internalDispatchRequest(urlPath, false);
             }
 
-            private File checkIfFileOkay(String urlPath) {
+            // readable file below documentRoot for the url path, sends 403 or 404 and returns null otherwise;
+            // resolutions are cached, so a known path (or a recent miss) is answered without the filesystem
+            // file the url path resolves to, the one it resolved to before if it is known
+            private Path cacheKey(String urlPath) {
+                Resolution resolution = resolvedPaths == null ? null : resolvedPaths.get(urlPath);
+                if (resolution != null && resolution.getFile() != null) {
+                    return resolution.getFile().getPath();
+                }
+                return documentRoot.resolve(urlPath).normalize();
+            }
+
+            private ResolvedFile checkIfFileOkay(String urlPath) {
+                Resolution resolution = resolvedPaths == null ? null : resolvedPaths.get(urlPath);
+                if (resolution == null) {
+                    long generation = resolvedPaths == null ? 0 : resolvedPaths.generation();
+                    resolution = resolvePath(urlPath);
+                    if (resolvedPaths != null) {
+                        resolvedPaths.put(urlPath, resolution, generation);
+                    }
+                }
+                if (resolution.getStatus() == 403) {
+                    sendError(403, "Forbidden");
+                    return null;
+                }
+                if (resolution.getStatus() == 404) {
+                    sendError(404, "Not Found");
+                    return null;
+                }
+                return resolution.getFile();
+            }
+
+            private Resolution resolvePath(String urlPath) {
             	// requestedPath = resolve path with respect to documentRoot
-                String requestedPath = documentRoot.resolve(urlPath).toString();
-                File file = new File(requestedPath);
-                String normalizedString = file.toPath().normalize().toString();
+                Path requestedPath = documentRoot.resolve(urlPath).normalize();
                 // if requestedPath is not below documentRoot, return response status 403 forbidden
-                // https://stackoverflow.com/questions/4746671/how-to-check-if-a-given-path-is-possible-child-of-another-path
-                if(!normalizedString.startsWith(documentRoot.normalize().toString())) {
-                    System.out.println("here");
-                    writeToOutput("HTTP/1.1 403 Forbidden\r\n");
-                    return null;
+                if (!requestedPath.startsWith(documentRoot.normalize())) {
+                    return new Resolution(403);
                 }
                 // check if requestedPath exists, is file and is readable; if not, return status 404
+                // (attributes are read at once, they also describe the file for validators)
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(requestedPath, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    return new Resolution(404);
+                }
+                if (!attributes.isRegularFile() || !Files.isReadable(requestedPath)) {
+                    return new Resolution(404);
+                }
                 // else extract file extension
-                if(!file.exists() || !file.isFile() || !file.canRead()) {
-                    writeToOutput("HTTP/1.1 404 Not Found\r\n");
-                    return null;
+                String[] fileSplitted = requestedPath.getFileName().toString().split("\\.");
+                String fileExtension = fileSplitted[fileSplitted.length - 1];
+
+                // find in mimeTypes map appropriate mimeType for current file extension
+                // (you filled that map during the construction of SmartHttpServer from mime.properties)
+                // if no mime type found, assume application/octet-stream
+                String mimeType = mimeTypes.get(fileExtension);
+                if (mimeType == null) {
+                    mimeType = "application/octet-stream";
                 }
-                return file;
+
+                ResolvedFile gzipped = null;
+                Path sidecar = compressibleTypes.contains(mimeType) ? GzipSidecars.find(requestedPath) : null;
+                if (sidecar != null) {
+                    try {
+                        gzipped = new ResolvedFile(sidecar, Files.readAttributes(sidecar, BasicFileAttributes.class), mimeType, null);
+                    } catch (IOException ignorable) {}
+                }
+                return new Resolution(new ResolvedFile(requestedPath, attributes, mimeType, gzipped));
             }
 
-            private void writeToOutput(String s) {
+            // error responses have no body, after a malformed request or server error connection is closed
+            private void sendError(int statusCode, String statusText) {
+                responseSent = true;
+                // after an invalid request (or a body which is not read) the connection is out of sync
+                if (statusCode == 400 || statusCode == 413 || statusCode >= 500) {
+                    keepAlive = false;
+                }
+                String response = "HTTP/1.1 " + statusCode + " " + statusText + "\r\n"
+                        + "Content-Length: 0\r\n"
+                        + (keepAlive ? "" : "Connection: close\r\n")
+                        + "\r\n";
                 try {
-                    ostream.write(s.getBytes(StandardCharsets.US_ASCII));
+                    ostream.write(response.getBytes(StandardCharsets.US_ASCII));
                     ostream.flush();
-                    ostream.close();
-                    //csocket.close();
                 } catch (IOException e) {
                     System.out.println("Error while writing to output stream.");
+                    keepAlive = false;
                 }
             }
 
-            private List<String> readRequest() {
-                List<String> toReturn = new ArrayList<String>();
-                // https://stackoverflow.com/questions/34954630/java-read-line-using-inputstream
-                BufferedReader reader = new BufferedReader(new InputStreamReader(istream));
-                // cita liniju po liniju dok ne dodje do prazne linije
-                // prazna linija oznacava kraj zaglavlja
-                while (true) {
-                    String line = null;
-                    try {
-                        line = reader.readLine();
-                    } catch (IOException e) {
-                        //System.out.println("Error while reading request.");
-                        //return toReturn;
-                    }
-                    if (line == null || line.equals("") || line.equals("\n") || line.equals("\r\n")) {
-                        break;
+            // prepared response for requests which waited too long or could not be queued at all
+            private void sendServiceUnavailable() {
+                responseSent = true;
+                keepAlive = false;
+                try {
+                    ostream.write(serviceUnavailable);
+                    ostream.flush();
+                } catch (IOException ignorable) {}
+            }
+
+            // reads until the parser has a complete request (or finds it invalid),
+            // null if connection was closed (or timed out) before a complete request arrived
+            // idle keep-alive connection may wait keepAliveTimeout for the next request, once it starts
+            // (or on a new connection) the whole header must arrive within headerTimeout
+            private HttpRequestParser.Status readRequest() {
+                boolean headerStarted = servedRequests == 0 || parser.hasData();
+                armTimeout(headerStarted ? headerTimeout : keepAliveTimeout * 1000L);
+                try {
+                    while (true) {
+                        HttpRequestParser.Status status = parser.parse();
+                        if (status != HttpRequestParser.Status.INCOMPLETE) {
+                            return status;
+                        }
+                        if (!headerStarted && parser.hasData()) {
+                            headerStarted = true;
+                            armTimeout(headerTimeout);
+                        }
+                        if (parser.readFrom(istream) < 0) {
+                            return null;
+                        }
                     }
-                    toReturn.add(line);
+                } catch (IOException e) {
+                    //System.out.println("Error while reading request.");
+                    return null;
+                } finally {
+                    cancelTimeout();
                 }
-                return toReturn;
             }
 
             // fill parameters map
@@ -486,7 +2714,7 @@ public class SmartHttpServer {
                 for (String param : params) {
                     String[] paramSplitted = param.split("=");
                     if (paramSplitted.length != 2) {
-                        writeToOutput("HTTP/1.1 400 Bad Request\r\n");
+                        sendError(400, "Bad Request");
                         throw new IllegalArgumentException("Cannot parse params");
                     }
                     this.params.put(paramSplitted[0], paramSplitted[1]);
@@ -501,39 +2729,47 @@ public class SmartHttpServer {
                 return sid;
             }
     
-            private void checkSession(List<String> headers){
-                for (String line : headers){
-                    if (!line.startsWith("Cookie:")){
+            // value of cookie with given name from Cookie header value (name1=value1; name2="value2"), null if not present
+            private String findCookie(String cookies, String name) {
+                int start = 0;
+                while (start < cookies.length()) {
+                    int end = cookies.indexOf(';', start);
+                    if (end < 0) {
+                        end = cookies.length();
+                    }
+                    int equals = cookies.indexOf('=', start);
+                    if (equals > 0 && equals < end && cookies.substring(start, equals).trim().equals(name)) {
+                        return cookies.substring(equals + 1, end).trim().replace("\"", "");
+                    }
+                    start = end + 1;
+                }
+                return null;
+            }
+
+            private void checkSession(HttpRequestParser request){
+                for (int i = 0; i < request.headerCount(); i++){
+                    if (!request.headerName(i).equalsIgnoreCase("Cookie")){
                         continue;
                     }
-                    line = line.substring(7).trim(); // preskacemo "Cookie:"
-                    String[] cookies = line.split(";");
-                    for (String cookie : cookies){
-                        String[] cookieSplitted = cookie.split("=");
-                        if (cookieSplitted.length != 2){
-                            continue;
-                        }
-                        if (cookieSplitted[0].trim().equals("sid")){
-                            String sidCandidate = cookieSplitted[1].trim().replace("\"", "");
-                            SessionMapEntry entry = sessions.get(sidCandidate);
-                            if (entry == null || !this.host.equals(entry.host) || entry.validUntil < System.currentTimeMillis()){
-                                if (entry != null && entry.validUntil < System.currentTimeMillis()){
-                                    sessions.remove(sidCandidate);
-                                }
-                                String newSid = generateSid();
-                                entry = new SessionMapEntry(newSid, this.host, System.currentTimeMillis() + sessionTimeout * 1000, new ConcurrentHashMap<String, String>());
-                                sessions.put(newSid, entry);
-                                outputCookies.add(new RCCookie("sid", newSid, null, this.host, "/"));
-                                //context = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this, newSid);
-                            }else{
-                                entry.validUntil = System.currentTimeMillis() + sessionTimeout * 1000;
-                                //sessions.put(sidCandidate, entry);
-                            }
-                            this.SID = entry.sid;
-                            this.permParams = entry.map;
-                            return;
+                    String sidCandidate = findCookie(request.headerValue(i).toString(), "sid");
+                    if (sidCandidate == null){
+                        continue;
+                    }
+                    SessionMapEntry entry = sessions.get(sidCandidate);
+                    if (entry == null || !this.host.equals(entry.host) || entry.validUntil < System.currentTimeMillis()){
+                        if (entry != null && entry.validUntil < System.currentTimeMillis()){
+                            sessions.remove(sidCandidate, entry);
                         }
+                        String newSid = generateSid();
+                        entry = new SessionMapEntry(newSid, this.host, System.currentTimeMillis() + sessionTimeout * 1000, new ConcurrentHashMap<String, String>());
+                        sessions.put(newSid, entry);
+                        outputCookies.add(new RCCookie("sid", newSid, null, this.host, "/"));
+                    }else{
+                        entry.validUntil = System.currentTimeMillis() + sessionTimeout * 1000;
                     }
+                    this.SID = entry.sid;
+                    this.permParams = entry.map;
+                    return;
                 }
                 // ako nismo nasli sid u cookiesima, generiramo novi
                 String newSid = generateSid();
@@ -549,7 +2785,7 @@ public class SmartHttpServer {
         private static class SessionMapEntry {
             String sid;
             String host;
-            long validUntil;
+            volatile long validUntil;
             Map<String, String> map;
 
             public SessionMapEntry(String sid, String host, long validUntil, Map<String, String> map) {
@@ -560,6 +2796,19 @@ public class SmartHttpServer {
             }
         }
 
+    private static String httpDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    // seconds since the epoch, -1 if the value is not a valid date
+    private static long parseHttpDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
     public static void main(String[] args) {
 
         if (args.length != 1) {
@@ -569,6 +2818,8 @@ public class SmartHttpServer {
         String serverProps = args[0];
         SmartHttpServer server = new SmartHttpServer(serverProps);
         server.start();
+        // SIGTERM / Ctrl+C drain the server instead of dropping requests in flight
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
     }
 }
     
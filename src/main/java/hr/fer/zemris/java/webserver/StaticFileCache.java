@@ -0,0 +1,197 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// in-memory cache of small static files: encoded response header (without connection and cookie
+// headers) and body, so a hit is served without touching the filesystem
+// segmented LRU bounded by bytes: new entries go to the probation segment, entries hit again are
+// promoted to the protected segment (80% of the budget), so a scan over many files read once only
+// pushes other once-read files out, not the ones which are used all the time
+public class StaticFileCache {
+
+	private long maxBytes;
+	private long maxProtectedBytes;
+	private int maxFileSize;
+	// access ordered, first entry is the least recently used one
+	private LinkedHashMap<Path, Entry> probation = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+	private LinkedHashMap<Path, Entry> protectedSegment = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+	private long probationBytes = 0;
+	private long protectedBytes = 0;
+	// incremented on every invalidation, content read before it is not stored
+	private long generation = 0;
+	// guards both segments and their sizes; access order changes on every get, so gets take it as well
+	private ReentrantLock lock = new ReentrantLock();
+
+	public StaticFileCache(long maxBytes, int maxFileSize) {
+		this.maxBytes = maxBytes;
+		this.maxProtectedBytes = maxBytes * 4 / 5;
+		this.maxFileSize = maxFileSize;
+	}
+
+	// can a file of this size be cached at all
+	public boolean accepts(long size) {
+		return size <= maxFileSize && size <= maxBytes - maxProtectedBytes;
+	}
+
+	public Entry get(Path path) {
+		lock.lock();
+		try {
+			Entry entry = protectedSegment.get(path);
+			if (entry != null) {
+				return entry;
+			}
+			entry = probation.remove(path);
+			if (entry == null) {
+				return null;
+			}
+			// second hit, entry is promoted and least recently used protected entries are demoted
+			probationBytes -= entry.size();
+			protectedSegment.put(path, entry);
+			protectedBytes += entry.size();
+			Iterator<Map.Entry<Path, Entry>> lru = protectedSegment.entrySet().iterator();
+			while (protectedBytes > maxProtectedBytes && lru.hasNext()) {
+				Map.Entry<Path, Entry> demoted = lru.next();
+				lru.remove();
+				protectedBytes -= demoted.getValue().size();
+				probation.put(demoted.getKey(), demoted.getValue());
+				probationBytes += demoted.getValue().size();
+			}
+			evictProbation();
+			return entry;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long generation() {
+		lock.lock();
+		try {
+			return generation;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// stores entry unless something was invalidated since generation was read (content may be stale)
+	public void put(Path path, Entry entry, long generation) {
+		if (!accepts(entry.body.length)) {
+			return;
+		}
+		lock.lock();
+		try {
+			if (generation != this.generation || protectedSegment.containsKey(path)) {
+				return;
+			}
+			Entry old = probation.put(path, entry);
+			if (old != null) {
+				probationBytes -= old.size();
+			}
+			probationBytes += entry.size();
+			evictProbation();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void evictProbation() {
+		Iterator<Entry> lru = probation.values().iterator();
+		while (probationBytes + protectedBytes > maxBytes && lru.hasNext()) {
+			probationBytes -= lru.next().size();
+			lru.remove();
+		}
+	}
+
+	// drops the path and everything below it (if it is a directory), null drops everything
+	public void invalidate(Path changed) {
+		lock.lock();
+		try {
+			generation++;
+			if (changed == null) {
+				probation.clear();
+				protectedSegment.clear();
+				probationBytes = 0;
+				protectedBytes = 0;
+				return;
+			}
+			probationBytes -= remove(probation, changed);
+			protectedBytes -= remove(protectedSegment, changed);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static long remove(Map<Path, Entry> segment, Path changed) {
+		long removed = 0;
+		Iterator<Map.Entry<Path, Entry>> it = segment.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Path, Entry> entry = it.next();
+			if (entry.getKey().startsWith(changed)) {
+				removed += entry.getValue().size();
+				it.remove();
+			}
+		}
+		return removed;
+	}
+
+	public static class Entry {
+		private byte[] header;
+		// header of the response to the fingerprinted url of the file, which clients may keep forever
+		private byte[] immutableHeader;
+		private byte[] body;
+		// validators of the cached version, conditional requests are answered without the filesystem
+		private String etag;
+		private long lastModified;
+		// precompressed version of the same file (gzip sidecar), null if there is none
+		private Entry gzipped;
+
+		public Entry(byte[] header, byte[] body, String etag, long lastModified) {
+			this(header, body, etag, lastModified, null);
+		}
+
+		public Entry(byte[] header, byte[] body, String etag, long lastModified, Entry gzipped) {
+			this(header, header, body, etag, lastModified, gzipped);
+		}
+
+		public Entry(byte[] header, byte[] immutableHeader, byte[] body, String etag, long lastModified, Entry gzipped) {
+			this.header = header;
+			this.immutableHeader = immutableHeader;
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.gzipped = gzipped;
+		}
+
+		public byte[] getHeader() {
+			return header;
+		}
+
+		public byte[] getImmutableHeader() {
+			return immutableHeader;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public Entry getGzipped() {
+			return gzipped;
+		}
+
+		private long size() {
+			long size = header.length + body.length + (gzipped == null ? 0 : gzipped.size());
+			return immutableHeader == header ? size : size + immutableHeader.length;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// hashed timing wheel: timeouts are kept in wheelSize slots by their deadline, one thread advances
+// the wheel every tick and expires timeouts of the current slot, so scheduling and cancelling
+// costs the same no matter how many connections are waiting and no connection needs its own timer
+// timeouts fire up to one tick late, tasks run on the wheel thread so they must be short
+public class TimingWheel {
+
+	private long tickMillis;
+	private Slot[] wheel;
+	private int mask;
+	private long startTime;
+	// ticks done so far, only used by the wheel thread
+	private long tick = 0;
+	// other threads never touch slots, they pass timeouts to the wheel thread through these queues
+	private Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private Thread thread;
+	private volatile boolean running = true;
+
+	// wheelSize is rounded up to a power of two
+	public TimingWheel(long tickMillis, int wheelSize) {
+		if (tickMillis <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("Tick and wheel size must be positive.");
+		}
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize) {
+			size <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.wheel = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.startTime = System.currentTimeMillis();
+		this.thread = new Thread(this::run, "timing-wheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// runs task on the wheel thread after delayMillis, unless the timeout is cancelled before that
+	public Timeout schedule(long delayMillis, Runnable task) {
+		Timeout timeout = new Timeout(System.currentTimeMillis() - startTime + Math.max(delayMillis, 0), task);
+		added.add(timeout);
+		return timeout;
+	}
+
+	// pending timeouts never fire after this
+	public void stop() {
+		running = false;
+		thread.interrupt();
+	}
+
+	private void run() {
+		while (running) {
+			long sleep = startTime + (tick + 1) * tickMillis - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			removeCancelled();
+			transferAdded();
+			expire(wheel[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != Timeout.PENDING) {
+				continue;
+			}
+			long ticks = timeout.deadline / tickMillis;
+			// number of full turns of the wheel before the timeout is due
+			timeout.rounds = Math.max(ticks - tick, 0) / wheel.length;
+			// deadlines already passed go to the current slot
+			wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.slot != null) {
+				timeout.slot.remove(timeout);
+			}
+		}
+	}
+
+	private void expire(Slot slot) {
+		Timeout timeout = slot.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.rounds <= 0) {
+				slot.remove(timeout);
+				if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						System.out.println("Error while running timeout task.");
+					}
+				}
+			} else {
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	public class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		// milliseconds from wheel start
+		private long deadline;
+		private Runnable task;
+		private AtomicInteger state = new AtomicInteger(PENDING);
+		// used only by the wheel thread
+		private long rounds;
+		private Slot slot;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		// true if the task will not run (it did not run yet and now it never will)
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+			cancelled.add(this);
+			return true;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+	// doubly linked list, so a cancelled timeout is removed without searching for it
+	private static class Slot {
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(Timeout timeout) {
+			timeout.slot = this;
+			timeout.prev = tail;
+			timeout.next = null;
+			if (tail == null) {
+				head = timeout;
+			} else {
+				tail.next = timeout;
+			}
+			tail = timeout;
+		}
+
+		private void remove(Timeout timeout) {
+			if (timeout.prev == null) {
+				head = timeout.next;
+			} else {
+				timeout.prev.next = timeout.next;
+			}
+			if (timeout.next == null) {
+				tail = timeout.prev;
+			} else {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.slot = null;
+			timeout.prev = null;
+			timeout.next = null;
+		}
+	}
+}
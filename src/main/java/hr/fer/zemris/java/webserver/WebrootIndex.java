@@ -0,0 +1,219 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// index of all files below the document root with hashes of their content, built when the server starts
+// and kept current by the document root watcher
+// file can be requested by its fingerprinted url (/images/bateman1.<hash>.jpg), such url always names
+// the same content, so clients may cache the response forever
+public class WebrootIndex {
+
+	// hex digits of the content hash used in urls
+	private static final int HASH_LENGTH = 8;
+
+	private Path documentRoot;
+	private Map<String, String> mimeTypes;
+	private ConcurrentHashMap<Path, IndexedFile> files = new ConcurrentHashMap<Path, IndexedFile>();
+
+	public WebrootIndex(Path documentRoot, Map<String, String> mimeTypes) {
+		this.documentRoot = documentRoot.normalize();
+		this.mimeTypes = mimeTypes;
+	}
+
+	// indexes every file below the document root
+	public void build() throws IOException {
+		index(documentRoot);
+	}
+
+	// listener for the document root watcher: the changed file (or directory) is indexed again,
+	// paths which don't exist any more are removed; null means anything could have changed
+	public void update(Path changed) {
+		Path path = changed == null ? documentRoot : changed.normalize();
+		try {
+			files.keySet().removeIf(p -> p.startsWith(path) && !Files.isRegularFile(p));
+			index(path);
+		} catch (IOException e) {
+			System.out.println("Error while indexing " + path + ".");
+		}
+	}
+
+	private void index(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		List<Path> found;
+		try (Stream<Path> walk = Files.walk(path)) {
+			found = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		for (Path file : found) {
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			} catch (IOException e) {
+				continue; // deleted in the meantime
+			}
+			Path key = file.normalize();
+			IndexedFile old = files.get(key);
+			long modified = attributes.lastModifiedTime().toMillis();
+			// content is hashed again only if it could have changed
+			if (old != null && old.size == attributes.size() && old.lastModified == modified) {
+				continue;
+			}
+			try {
+				files.put(key, new IndexedFile(key, attributes.size(), modified, mimeType(key), hash(key)));
+			} catch (IOException e) {
+				files.remove(key);
+			}
+		}
+	}
+
+	private String mimeType(Path file) {
+		String name = file.getFileName().toString();
+		String mimeType = mimeTypes.get(name.substring(name.lastIndexOf('.') + 1));
+		return mimeType == null ? "application/octet-stream" : mimeType;
+	}
+
+	private static String hash(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every java platform has SHA-256
+		}
+		byte[] buffer = new byte[16384];
+		try (InputStream in = Files.newInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.substring(0, HASH_LENGTH);
+	}
+
+	public IndexedFile get(String urlPath) {
+		return files.get(resolve(urlPath));
+	}
+
+	// fingerprinted url of the file (hash is inserted before the extension), the url as it is if the
+	// file is not in the index
+	public String fingerprint(String urlPath) {
+		IndexedFile file = get(urlPath);
+		if (file == null) {
+			return urlPath;
+		}
+		int slash = urlPath.lastIndexOf('/');
+		int dot = urlPath.lastIndexOf('.');
+		if (dot <= slash + 1) {
+			return urlPath + "." + file.hash;
+		}
+		return urlPath.substring(0, dot) + "." + file.hash + urlPath.substring(dot);
+	}
+
+	// url path of the file a fingerprinted url path names, null if the url is not fingerprinted (or it
+	// names content which is not current any more)
+	// every request goes through it, a url without a hash is recognised without allocating anything
+	public String unfingerprint(String urlPath) {
+		int slash = urlPath.lastIndexOf('/');
+		int dot = urlPath.lastIndexOf('.');
+		if (dot <= slash) {
+			return null;
+		}
+		// hash at the end of a name without extension
+		if (isHash(urlPath, dot + 1, urlPath.length())) {
+			String plain = checked(urlPath, urlPath.substring(0, dot), dot + 1);
+			if (plain != null) {
+				return plain;
+			}
+		}
+		// hash in front of the extension
+		int previous = urlPath.lastIndexOf('.', dot - 1);
+		if (previous > slash && isHash(urlPath, previous + 1, dot)) {
+			return checked(urlPath, urlPath.substring(0, previous) + urlPath.substring(dot), previous + 1);
+		}
+		return null;
+	}
+
+	// plain url path if its file has the hash which starts at hashStart of the url
+	private String checked(String urlPath, String plain, int hashStart) {
+		IndexedFile file = get(plain);
+		if (file == null || !urlPath.regionMatches(hashStart, file.hash, 0, HASH_LENGTH)) {
+			return null;
+		}
+		// file really has such name
+		if (get(urlPath) != null) {
+			return null;
+		}
+		return plain;
+	}
+
+	private static boolean isHash(String text, int start, int end) {
+		if (end - start != HASH_LENGTH) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Path resolve(String urlPath) {
+		if (urlPath.startsWith("/")) {
+			urlPath = urlPath.substring(1);
+		}
+		return documentRoot.resolve(urlPath).normalize();
+	}
+
+	public static class IndexedFile {
+		private Path path;
+		private long size;
+		private long lastModified;
+		private String mimeType;
+		private String hash;
+
+		private IndexedFile(Path path, long size, long lastModified, String mimeType, String hash) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.mimeType = mimeType;
+			this.hash = hash;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+	}
+}
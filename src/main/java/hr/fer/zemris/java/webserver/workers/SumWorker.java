@@ -37,9 +37,9 @@ public class SumWorker implements IWebWorker{
 		context.setTemporaryParameter("varB", varB + "");
 		
 		if(sum % 2 == 0) {
-			context.setTemporaryParameter("imgName", "bateman1.jpg");
+			context.setTemporaryParameter("imgPath", "/images/bateman1.jpg");
 		}else {
-			context.setTemporaryParameter("imgName", "bateman2.jpg");
+			context.setTemporaryParameter("imgPath", "/images/bateman2.jpg");
 		}
 		context.getDispatcher().dispatchRequest("/private/pages/calc.smscr");
 		
@@ -0,0 +1,172 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+
+// chunks are sized by the connection's buffer (package private setup), so the test lives in its package
+public class ChunkedResponseTest {
+
+    private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    // body as the client decodes it: size of every chunk, their content and the trailer lines
+    private static class ChunkedBody {
+        private String header;
+        private List<Integer> chunkSizes = new ArrayList<Integer>();
+        private ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private List<String> trailer = new ArrayList<String>();
+        // bytes after the end of the body
+        private int rest;
+    }
+
+    // HTTP/1.1 keep-alive response without a length, chunks of 256 bytes
+    private RequestContext context() {
+        RequestContext rc = new RequestContext(out, new HashMap<String, String>(), new HashMap<String, String>(), new ArrayList<RCCookie>());
+        rc.setKeepAlive(true, true);
+        rc.setBufferSize(272);
+        rc.setMimeType("text/plain");
+        return rc;
+    }
+
+    private static byte[] text(int length) {
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) ('a' + i % 26);
+        }
+        return text;
+    }
+
+    private ChunkedBody decode() {
+        byte[] response = out.toByteArray();
+        String all = new String(response, StandardCharsets.ISO_8859_1);
+        ChunkedBody body = new ChunkedBody();
+        int position = all.indexOf("\r\n\r\n") + 4;
+        body.header = all.substring(0, position);
+        while (true) {
+            int end = all.indexOf("\r\n", position);
+            int size = Integer.parseInt(all.substring(position, end), 16);
+            position = end + 2;
+            if (size == 0) {
+                break;
+            }
+            body.chunkSizes.add(size);
+            body.content.write(response, position, size);
+            position += size;
+            assertEquals("\r\n", all.substring(position, position + 2));
+            position += 2;
+        }
+        while (true) {
+            int end = all.indexOf("\r\n", position);
+            String line = all.substring(position, end);
+            position = end + 2;
+            if (line.isEmpty()) {
+                break;
+            }
+            body.trailer.add(line);
+        }
+        body.rest = response.length - position;
+        return body;
+    }
+
+    @Test
+    public void testSmallWritesAreCoalesced() throws IOException {
+        byte[] page = text(600);
+        RequestContext rc = context();
+        for (int offset = 0; offset < page.length; offset += 10) {
+            rc.write(page, offset, 10);
+        }
+        rc.finish();
+
+        ChunkedBody body = decode();
+        assertTrue(body.header.contains("Transfer-Encoding: chunked\r\n"), body.header);
+        assertEquals(List.of(256, 256, 88), body.chunkSizes);
+        assertArrayEquals(page, body.content.toByteArray());
+        assertTrue(body.trailer.isEmpty());
+        assertEquals(0, body.rest);
+        assertTrue(out.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    public void testFlushEndsChunk() throws IOException {
+        byte[] page = text(150);
+        RequestContext rc = context();
+        rc.write(page, 0, 100);
+        rc.flush();
+
+        // everything written so far is on its way as a complete chunk
+        String sent = out.toString(StandardCharsets.ISO_8859_1);
+        String flushedChunk = "64\r\n" + new String(page, 0, 100, StandardCharsets.ISO_8859_1) + "\r\n";
+        assertTrue(sent.endsWith(flushedChunk), sent);
+
+        // flush without anything new doesn't send an empty chunk, it would end the body
+        rc.flush();
+        assertEquals(sent, out.toString(StandardCharsets.ISO_8859_1));
+
+        rc.write(page, 100, 50);
+        rc.finish();
+        ChunkedBody body = decode();
+        assertEquals(List.of(100, 50), body.chunkSizes);
+        assertArrayEquals(page, body.content.toByteArray());
+        assertEquals(0, body.rest);
+    }
+
+    @Test
+    public void testLargeWriteIsOwnChunk() throws IOException {
+        byte[] page = text(1010);
+        RequestContext rc = context();
+        rc.write(page, 0, 10);
+        // collected chunk is filled up first, the rest goes out as it is
+        rc.write(page, 10, 1000);
+        rc.finish();
+
+        ChunkedBody body = decode();
+        assertEquals(List.of(256, 754), body.chunkSizes);
+        assertArrayEquals(page, body.content.toByteArray());
+    }
+
+    @Test
+    public void testEmptyBody() throws IOException {
+        RequestContext rc = context();
+        rc.flush();
+        rc.finish();
+
+        ChunkedBody body = decode();
+        assertTrue(body.chunkSizes.isEmpty());
+        assertEquals(0, body.content.size());
+        assertEquals(0, body.rest);
+    }
+
+    @Test
+    public void testTrailer() throws IOException {
+        byte[] page = text(300);
+        RequestContext rc = context();
+        rc.setHeader("Trailer", "X-Checksum, Server-Timing");
+        rc.write(page);
+        rc.setTrailer("X-Checksum", "1a2b3c");
+        rc.setTrailer("Server-Timing", "total;dur=5");
+        rc.finish();
+
+        ChunkedBody body = decode();
+        // write of a whole chunk or more is not split
+        assertEquals(List.of(300), body.chunkSizes);
+        assertArrayEquals(page, body.content.toByteArray());
+        // in the order they were set
+        assertEquals(List.of("X-Checksum: 1a2b3c", "Server-Timing: total;dur=5"), body.trailer);
+        assertEquals(0, body.rest);
+        String response = out.toString(StandardCharsets.ISO_8859_1);
+        assertTrue(response.endsWith("\r\n0\r\nX-Checksum: 1a2b3c\r\nServer-Timing: total;dur=5\r\n\r\n"), response);
+        assertTrue(Arrays.asList(body.header.split("\r\n")).contains("Trailer: X-Checksum, Server-Timing"), body.header);
+    }
+}
@@ -0,0 +1,130 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+
+// responses are compressed the way the server sets them up (package private), so the test lives in its package
+public class CompressedResponseTest {
+
+    private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    // HTTP/1.1 response which closes the connection, so its body is not chunked
+    private RequestContext context(String coding) {
+        RequestContext rc = new RequestContext(out, new HashMap<String, String>(), new HashMap<String, String>(), new ArrayList<RCCookie>());
+        rc.setKeepAlive(false, true);
+        rc.setCompression(new ResponseCompression(6, 1024, Set.of("text/html"), 4), coding);
+        rc.setMimeType("text/html");
+        return rc;
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < length; i++) {
+            text.append("<p>line ").append(i).append(" of a page written piece by piece</p>\n");
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private String header() {
+        String response = out.toString(StandardCharsets.ISO_8859_1);
+        return response.substring(0, response.indexOf("\r\n\r\n") + 4);
+    }
+
+    private byte[] body() {
+        byte[] response = out.toByteArray();
+        return Arrays.copyOfRange(response, header().length(), response.length);
+    }
+
+    private static void writeInPieces(RequestContext rc, byte[] data) throws IOException {
+        for (int offset = 0; offset < data.length; offset += 700) {
+            rc.write(data, offset, Math.min(700, data.length - offset));
+        }
+    }
+
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        byte[] page = text(100000);
+        RequestContext rc = context("gzip");
+        writeInPieces(rc, page);
+        rc.finish();
+
+        assertTrue(header().contains("Content-Encoding: gzip\r\n"), header());
+        assertTrue(header().contains("Vary: Accept-Encoding\r\n"), header());
+        assertFalse(header().contains("Content-Length"), header());
+        assertTrue(body().length < page.length / 4);
+        // header, deflate data and the trailer with checksum and length are checked by the stream
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body()))) {
+            assertArrayEquals(page, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws IOException {
+        byte[] page = text(20000);
+        RequestContext rc = context("deflate");
+        writeInPieces(rc, page);
+        rc.finish();
+
+        assertTrue(header().contains("Content-Encoding: deflate\r\n"), header());
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(body()))) {
+            assertArrayEquals(page, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testSmallBodyIsNotCompressed() throws IOException {
+        byte[] page = text(1023);
+        RequestContext rc = context("gzip");
+        writeInPieces(rc, page);
+        rc.finish();
+
+        assertFalse(header().contains("Content-Encoding"), header());
+        assertTrue(header().contains("Content-Length: 1023\r\n"), header());
+        assertTrue(header().contains("Vary: Accept-Encoding\r\n"), header());
+        assertArrayEquals(page, body());
+    }
+
+    @Test
+    public void testFlushedOutputIsDecodable() throws IOException, DataFormatException {
+        byte[] page = text(5000);
+        RequestContext rc = context("gzip");
+        // held back part is below the minimum size, flush compresses it anyway
+        rc.write(page, 0, 100);
+        rc.flush();
+
+        byte[] sent = body();
+        Inflater inflater = new Inflater(true);
+        // after the 10 byte gzip header
+        inflater.setInput(sent, 10, sent.length - 10);
+        byte[] decoded = new byte[200];
+        assertEquals(100, inflater.inflate(decoded));
+        assertArrayEquals(Arrays.copyOf(page, 100), Arrays.copyOf(decoded, 100));
+        inflater.end();
+
+        rc.write(page, 100, page.length - 100);
+        rc.finish();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body()))) {
+            assertArrayEquals(page, in.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import hr.fer.zemris.java.webserver.ByteRange;
+
+public class ByteRangeTest {
+
+    @Test
+    public void testRangeForms() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99, 900-, -50", 1000);
+        assertEquals(3, ranges.size());
+        assertEquals("bytes 0-99/1000", ranges.get(0).contentRange(1000));
+        assertEquals("bytes 900-999/1000", ranges.get(1).contentRange(1000));
+        assertEquals("bytes 950-999/1000", ranges.get(2).contentRange(1000));
+        assertEquals(100, ranges.get(0).length());
+    }
+
+    @Test
+    public void testRangeIsClippedToFile() {
+        List<ByteRange> ranges = ByteRange.parse("Bytes=500-2000", 1000);
+        assertEquals("bytes 500-999/1000", ranges.get(0).contentRange(1000));
+
+        ranges = ByteRange.parse("bytes=-5000", 1000);
+        assertEquals("bytes 0-999/1000", ranges.get(0).contentRange(1000));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() {
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+    }
+
+    @Test
+    public void testInvalidHeaderIsIgnored() {
+        assertNull(ByteRange.parse("items=0-10", 1000));
+        assertNull(ByteRange.parse("bytes=10-5", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+        assertNull(ByteRange.parse("bytes=", 1000));
+        assertNull(ByteRange.parse("bytes=0-0,1-1,2-2,3-3,4-4,5-5,6-6,7-7,8-8,9-9,10-10,11-11,12-12,13-13,14-14,15-15,16-16", 1000));
+    }
+}
@@ -0,0 +1,149 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import hr.fer.zemris.java.webserver.BodyDecoder;
+import hr.fer.zemris.java.webserver.BodyDecoder.InvalidBodyException;
+import hr.fer.zemris.java.webserver.FormParser;
+import hr.fer.zemris.java.webserver.FormPart;
+import hr.fer.zemris.java.webserver.HttpRequestParser;
+import hr.fer.zemris.java.webserver.RequestBody;
+
+public class FormParserTest {
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // request and whatever follows it arrive through the parser, as on a connection
+    private static RequestBody body(HttpRequestParser parser, String request) throws IOException {
+        byte[] data = bytes(request);
+        parser.feed(data, 0, Math.min(data.length, 64));
+        InputStream rest = new ByteArrayInputStream(data, 64, Math.max(0, data.length - 64));
+        while (parser.parse() == HttpRequestParser.Status.INCOMPLETE) {
+            parser.readFrom(rest);
+        }
+        HttpRequestParser copy = parser.copyRequest();
+        parser.nextRequest();
+        return new RequestBody(parser, rest, BodyDecoder.forRequest(copy, 1000));
+    }
+
+    @Test
+    public void testChunkedBodyLeavesNextRequest() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(128);
+        RequestBody body = body(parser, "POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;ext=1\r\nhello\r\n18\r\n, chunked body in pieces\r\n0\r\nTrailer: x\r\n\r\n"
+                + "GET /next HTTP/1.1\r\n\r\n");
+
+        assertEquals("hello, chunked body in pieces", new String(body.readAllBytes(), StandardCharsets.ISO_8859_1));
+        assertEquals(HttpRequestParser.Status.COMPLETE, parser.parse());
+        assertEquals("/next", parser.path().toString());
+    }
+
+    @Test
+    public void testInvalidBodies() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(128);
+        InvalidBodyException tooLarge = assertThrows(InvalidBodyException.class,
+                () -> body(parser, "POST / HTTP/1.1\r\nContent-Length: 1001\r\n\r\n"));
+        assertEquals(413, tooLarge.getStatus());
+
+        RequestBody body = body(new HttpRequestParser(128), "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+        assertEquals(400, assertThrows(InvalidBodyException.class, body::readAllBytes).getStatus());
+
+        RequestBody cut = body(new HttpRequestParser(128), "POST / HTTP/1.1\r\nContent-Length: 10\r\n\r\nshort");
+        assertThrows(IOException.class, cut::readAllBytes);
+    }
+
+    @Test
+    public void testUrlEncoded() throws IOException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        FormParser.parseUrlEncoded(new ByteArrayInputStream(bytes("a=1&b=two+words&%C4%8D=%C5%BE&&flag")), parameters, 100);
+
+        assertEquals(Map.of("a", "1", "b", "two words", "č", "ž", "flag", ""), parameters);
+        assertThrows(InvalidBodyException.class,
+                () -> FormParser.parseUrlEncoded(new ByteArrayInputStream(new byte[101]), parameters, 100));
+    }
+
+    @Test
+    public void testMultipartSpillsLargeParts(@TempDir Path temporary) throws IOException {
+        byte[] file = new byte[50000];
+        for (int i = 0; i < file.length; i++) {
+            // content looks like the start of the delimiter now and then
+            file[i] = (byte) (i % 1000 == 0 ? '\r' : i % 1000 == 1 ? '\n' : i % 1000 == 2 ? '-' : i);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(bytes("preamble\r\n--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\n1\r\n"
+                + "--XyZ\r\nContent-Disposition: form-data; name=\"upload\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n"));
+        body.write(file);
+        body.write(bytes("\r\n--XyZ--\r\nepilogue"));
+
+        List<FormPart> parts = FormParser.parseMultipart(new ByteArrayInputStream(body.toByteArray()),
+                FormParser.boundary("multipart/form-data; boundary=\"XyZ\""), 1024, temporary);
+
+        assertEquals(2, parts.size());
+        assertEquals("a", parts.get(0).getName());
+        assertNull(parts.get(0).getFileName());
+        assertEquals("1", parts.get(0).getString());
+        assertTrue(parts.get(0).isInMemory());
+
+        FormPart upload = parts.get(1);
+        assertEquals("data.bin", upload.getFileName());
+        assertEquals("application/octet-stream", upload.getContentType());
+        assertEquals(file.length, upload.getSize());
+        assertFalse(upload.isInMemory());
+        try (InputStream in = upload.getInputStream()) {
+            assertArrayEquals(file, in.readAllBytes());
+        }
+        try (var files = Files.list(temporary)) {
+            assertEquals(1, files.count());
+        }
+
+        // body without the close delimiter is not a complete form, its parts are not kept
+        byte[] cut = new byte[body.size() - 20];
+        System.arraycopy(body.toByteArray(), 0, cut, 0, cut.length);
+        assertThrows(InvalidBodyException.class, () -> FormParser.parseMultipart(new ByteArrayInputStream(cut), "XyZ", 1024, temporary));
+        try (var files = Files.list(temporary)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void testLargeFieldIsRejected(@TempDir Path temporary) throws IOException {
+        String body = "--XyZ\r\nContent-Disposition: form-data; name=\"upload\"; filename=\"a.txt\"\r\n\r\n"
+                + "x".repeat(2000) + "\r\n--XyZ\r\nContent-Disposition: form-data; name=\"comment\"\r\n\r\n"
+                + "y".repeat(1025) + "\r\n--XyZ--\r\n";
+
+        // field would not be a parameter, so the form is refused instead of losing it
+        InvalidBodyException tooLarge = assertThrows(InvalidBodyException.class,
+                () -> FormParser.parseMultipart(new ByteArrayInputStream(bytes(body)), "XyZ", 1024, temporary));
+        assertEquals(413, tooLarge.getStatus());
+        // file received before it is deleted
+        try (var files = Files.list(temporary)) {
+            assertEquals(0, files.count());
+        }
+
+        List<FormPart> parts = FormParser.parseMultipart(new ByteArrayInputStream(bytes(body.replace("y".repeat(1025), "y".repeat(1024)))),
+                "XyZ", 1024, temporary);
+        assertEquals("y".repeat(1024), parts.get(1).getString());
+    }
+}
@@ -0,0 +1,56 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import hr.fer.zemris.java.webserver.GzipSidecars;
+
+public class GzipSidecarsTest {
+
+    private static final Map<String, String> MIME_TYPES = Map.of("html", "text/html", "png", "image/png");
+
+    @Test
+    public void testGenerateCompressibleFiles(@TempDir Path root) throws IOException {
+        String html = "<html><body>" + "hello ".repeat(200) + "</body></html>";
+        Files.createDirectories(root.resolve("pages"));
+        Files.writeString(root.resolve("pages/index.html"), html);
+        Files.write(root.resolve("image.png"), new byte[2000]);
+
+        assertEquals(1, GzipSidecars.generate(root, MIME_TYPES, Set.of("text/html")));
+
+        Path sidecar = GzipSidecars.find(root.resolve("pages/index.html"));
+        assertEquals(root.resolve("pages/index.html.gz"), sidecar);
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(sidecar))) {
+            assertEquals(html, new String(in.readAllBytes()));
+        }
+        assertNull(GzipSidecars.find(root.resolve("image.png")));
+        // nothing left to do on the second pass
+        assertEquals(0, GzipSidecars.generate(root, MIME_TYPES, Set.of("text/html")));
+    }
+
+    @Test
+    public void testStaleSidecarIsNotServed(@TempDir Path root) throws IOException {
+        Path file = root.resolve("index.html");
+        Files.writeString(file, "<html>" + "x".repeat(500) + "</html>");
+        GzipSidecars.generate(root, MIME_TYPES, Set.of("text/html"));
+
+        Path sidecar = root.resolve("index.html.gz");
+        Files.setLastModifiedTime(sidecar, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 10000));
+
+        assertNull(GzipSidecars.find(file));
+        assertEquals(file, GzipSidecars.original(sidecar));
+        assertNull(GzipSidecars.original(file));
+    }
+}
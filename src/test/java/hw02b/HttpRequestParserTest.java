@@ -0,0 +1,150 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import hr.fer.zemris.java.webserver.HttpRequestParser;
+import hr.fer.zemris.java.webserver.HttpRequestParser.Status;
+
+public class HttpRequestParserTest {
+
+    private static final String REQUEST = "GET /calc?a=2&b=5 HTTP/1.1\r\n"
+            + "Host: www.localhost.com:5721\r\n"
+            + "Cookie: sid=\"ABC\"  \r\n"
+            + "\r\n";
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testCompleteRequest() {
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] data = bytes(REQUEST);
+        parser.feed(data, 0, data.length);
+
+        assertEquals(Status.COMPLETE, parser.parse());
+        assertEquals("GET", parser.method().toString());
+        assertEquals("/calc", parser.path().toString());
+        assertEquals("a=2&b=5", parser.query().toString());
+        assertEquals("HTTP/1.1", parser.version().toString());
+        assertEquals(2, parser.headerCount());
+        assertEquals("Host", parser.headerName(0).toString());
+        assertEquals("www.localhost.com:5721", parser.headerValue(0).toString());
+        assertEquals("sid=\"ABC\"", parser.header("cookie").toString());
+        assertNull(parser.header("Connection"));
+        assertFalse(parser.hasPipelinedData());
+    }
+
+    @Test
+    public void testFragmentedByteByByte() {
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] data = bytes(REQUEST);
+        for (int i = 0; i < data.length - 1; i++) {
+            parser.feed(data, i, 1);
+            assertEquals(Status.INCOMPLETE, parser.parse());
+        }
+        parser.feed(data, data.length - 1, 1);
+
+        assertEquals(Status.COMPLETE, parser.parse());
+        assertEquals("/calc", parser.path().toString());
+        assertEquals("sid=\"ABC\"", parser.header("Cookie").toString());
+    }
+
+    @Test
+    public void testFragmentedAtEveryPosition() {
+        byte[] data = bytes(REQUEST);
+        for (int split = 1; split < data.length; split++) {
+            HttpRequestParser parser = new HttpRequestParser();
+            parser.feed(data, 0, split);
+            assertEquals(Status.INCOMPLETE, parser.parse());
+            parser.feed(data, split, data.length - split);
+            assertEquals(Status.COMPLETE, parser.parse());
+            assertEquals("a=2&b=5", parser.query().toString());
+            assertEquals("www.localhost.com:5721", parser.header("Host").toString());
+        }
+    }
+
+    @Test
+    public void testPipelinedRequests() {
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] data = bytes("GET /index.html HTTP/1.1\r\n\r\nGET /fruits.png HTTP/1.0\r\nConnection: keep-alive\r\n\r\nGET /x");
+        parser.feed(data, 0, data.length);
+
+        assertEquals(Status.COMPLETE, parser.parse());
+        assertEquals("/index.html", parser.path().toString());
+        assertTrue(parser.hasPipelinedData());
+        HttpRequestParser first = parser.copyRequest();
+
+        parser.nextRequest();
+        assertEquals(Status.COMPLETE, parser.parse());
+        assertEquals("/fruits.png", parser.path().toString());
+        assertTrue(parser.header("Connection").equalsIgnoreCase("KEEP-ALIVE"));
+
+        parser.nextRequest();
+        assertEquals(Status.INCOMPLETE, parser.parse());
+        // copy is not affected by the parser moving on
+        assertEquals("/index.html", first.path().toString());
+    }
+
+    @Test
+    public void testBareLineFeedsAndLeadingEmptyLines() {
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] data = bytes("\r\n\nGET / HTTP/1.0\nHost:localhost\n\n");
+        parser.feed(data, 0, data.length);
+
+        assertEquals(Status.COMPLETE, parser.parse());
+        assertEquals("/", parser.path().toString());
+        assertTrue(parser.query().isEmpty());
+        assertTrue(parser.version().contentEquals("HTTP/1.0"));
+        assertEquals("localhost", parser.header("host").toString());
+    }
+
+    @Test
+    public void testHeaderTooLarge() {
+        HttpRequestParser parser = new HttpRequestParser(64);
+        byte[] data = bytes("GET / HTTP/1.1\r\nX-Long: " + "a".repeat(100) + "\r\n\r\n");
+
+        assertEquals(64, parser.feed(data, 0, data.length));
+        assertEquals(Status.TOO_LARGE, parser.parse());
+    }
+
+    @Test
+    public void testMalformedRequests() {
+        String[] requests = {
+            "GET /index.html\r\n\r\n",
+            "GET  /index.html HTTP/1.1\r\n\r\n",
+            "GET /a b HTTP/1.1\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost localhost\r\n\r\n",
+            "GET / HTTP/1.1\r\n folded: header\r\n\r\n",
+            "GET / HTTP/1.1\rHost: x\r\n\r\n"
+        };
+        for (String request : requests) {
+            HttpRequestParser parser = new HttpRequestParser();
+            byte[] data = bytes(request);
+            parser.feed(data, 0, data.length);
+            assertEquals(Status.MALFORMED, parser.parse(), request);
+        }
+    }
+
+    @Test
+    public void testHeaderTokens() {
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] data = bytes("GET / HTTP/1.1\r\nConnection: Keep-Alive ,\tUpgrade,,close-ish\r\nTE: trailers\r\n\r\n");
+        parser.feed(data, 0, data.length);
+
+        assertEquals(Status.COMPLETE, parser.parse());
+        HttpRequestParser.Slice connection = parser.header("Connection");
+        assertTrue(connection.containsToken("keep-alive"));
+        assertTrue(connection.containsToken("upgrade"));
+        assertFalse(connection.containsToken("close"));
+        assertFalse(connection.containsToken("Keep"));
+        assertTrue(parser.header("TE").containsToken("trailers"));
+    }
+}
@@ -0,0 +1,82 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.jupiter.api.Test;
+
+import hr.fer.zemris.java.webserver.RequestContext;
+import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+
+public class RequestContextTest {
+
+    private static RequestContext context(ByteArrayOutputStream out) {
+        return new RequestContext(out, new HashMap<String, String>(), new HashMap<String, String>(), new ArrayList<RCCookie>());
+    }
+
+    @Test
+    public void testHeader() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext rc = context(out);
+        rc.setStatusCode(404);
+        rc.setStatusText("Not Found");
+        rc.setMimeType("text/plain");
+        rc.setContentLength(5L);
+        rc.setHeader("X-Note", "čudno");
+        rc.addRCCookie(new RCCookie("sid", "ABC", 3600, "www.localhost.com", "/"));
+        rc.write("hello".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("HTTP/1.1 404 Not Found\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Length: 5\r\n"
+                + "X-Note: ?udno\r\n"
+                + "Set-Cookie: sid=\"ABC\"; Domain=www.localhost.com; Path=/; Max-Age=3600; HttpOnly\r\n"
+                + "\r\n"
+                + "hello", out.toString(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testUnusualStatusAndBinaryType() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext rc = context(out);
+        rc.setStatusCode(299);
+        rc.setStatusText("Idemo dalje");
+        rc.setMimeType("image/png");
+        rc.write(new byte[0]);
+
+        assertEquals("HTTP/1.1 299 Idemo dalje\r\nContent-Type: image/png\r\n\r\n", out.toString(StandardCharsets.ISO_8859_1));
+    }
+
+    private static byte[] body(String encoding, CharSequence text, int offset, int len) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext rc = context(out);
+        rc.setEncoding(encoding);
+        rc.setMimeType("application/octet-stream");
+        rc.write(text, offset, len);
+        byte[] response = out.toByteArray();
+        int headerLength = out.toString(StandardCharsets.ISO_8859_1).indexOf("\r\n\r\n") + 4;
+        return Arrays.copyOfRange(response, headerLength, response.length);
+    }
+
+    @Test
+    public void testTextEncodedAsGetBytes() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("ascii, čćžšđ, €, \uD83D\uDE00 ");
+        }
+        text.append("lone \uD83D surrogate");
+        for (String encoding : new String[] {"UTF-8", "ISO-8859-1", "US-ASCII", "ISO-8859-2", "UTF-16"}) {
+            byte[] expected = text.toString().getBytes(Charset.forName(encoding));
+            assertArrayEquals(expected, body(encoding, text, 0, text.length()), encoding);
+        }
+        assertArrayEquals("čćž".getBytes(StandardCharsets.UTF_8), body("UTF-8", text, 7, 3));
+    }
+}
@@ -0,0 +1,85 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import hr.fer.zemris.java.webserver.ResolvedPathCache;
+import hr.fer.zemris.java.webserver.ResolvedPathCache.Resolution;
+import hr.fer.zemris.java.webserver.ResolvedPathCache.ResolvedFile;
+
+public class ResolvedPathCacheTest {
+
+    private static Resolution hit(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "content");
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return new Resolution(new ResolvedFile(file, attributes, "text/html", null));
+    }
+
+    @Test
+    public void testMissExpires() throws InterruptedException {
+        ResolvedPathCache cache = new ResolvedPathCache(100, 50);
+        cache.put("missing.html", new Resolution(404), cache.generation());
+        assertEquals(404, cache.get("missing.html").getStatus());
+
+        Thread.sleep(100);
+        assertNull(cache.get("missing.html"));
+    }
+
+    @Test
+    public void testInvalidation(@TempDir Path root) throws IOException {
+        ResolvedPathCache cache = new ResolvedPathCache(100, 60000);
+        cache.put("images/a.jpg", hit(root.resolve("images/a.jpg")), cache.generation());
+        cache.put("index.html", hit(root.resolve("index.html")), cache.generation());
+        cache.put("new.html", new Resolution(404), cache.generation());
+
+        cache.invalidate(root.resolve("images"));
+        assertNull(cache.get("images/a.jpg"));
+        assertNotNull(cache.get("index.html"));
+        // file may exist now
+        assertNull(cache.get("new.html"));
+
+        // sidecar belongs to the original file
+        cache.invalidate(root.resolve("index.html.gz"));
+        assertNull(cache.get("index.html"));
+    }
+
+    @Test
+    public void testResolutionBeforeInvalidationIsNotStored(@TempDir Path root) throws IOException {
+        ResolvedPathCache cache = new ResolvedPathCache(100, 60000);
+        long generation = cache.generation();
+        cache.invalidate(root.resolve("index.html"));
+        cache.put("index.html", hit(root.resolve("index.html")), generation);
+
+        assertNull(cache.get("index.html"));
+    }
+
+    @Test
+    public void testFullCache(@TempDir Path root) throws IOException {
+        ResolvedPathCache cache = new ResolvedPathCache(2, 60000);
+        cache.put("a.html", hit(root.resolve("a.html")), cache.generation());
+        cache.put("b.html", hit(root.resolve("b.html")), cache.generation());
+        cache.put("c.html", hit(root.resolve("c.html")), cache.generation());
+        for (int i = 0; i < 1000; i++) {
+            cache.put("scan" + i + ".html", new Resolution(404), cache.generation());
+        }
+
+        // misses don't push files out, new files don't fit any more
+        assertNotNull(cache.get("a.html"));
+        assertNotNull(cache.get("b.html"));
+        assertNull(cache.get("c.html"));
+        // only the latest misses are kept
+        assertNull(cache.get("scan997.html"));
+        assertEquals(404, cache.get("scan998.html").getStatus());
+        assertEquals(404, cache.get("scan999.html").getStatus());
+    }
+}
@@ -0,0 +1,35 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import hr.fer.zemris.java.webserver.ResponseCompression;
+
+public class ResponseCompressionTest {
+
+    private ResponseCompression compression = new ResponseCompression(6, 1024, Set.of("text/html"), 4);
+
+    @Test
+    public void testNegotiate() {
+        assertEquals("gzip", compression.negotiate("gzip, deflate, br"));
+        assertEquals("deflate", compression.negotiate("deflate"));
+        assertEquals("deflate", compression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("gzip", compression.negotiate("x-gzip"));
+        assertEquals("gzip", compression.negotiate("br, *;q=0.1"));
+        assertNull(compression.negotiate("gzip;q=0, identity"));
+        assertNull(compression.negotiate(null));
+    }
+
+    @Test
+    public void testAllowedMimeTypes() {
+        assertTrue(compression.accepts("text/html"));
+        assertTrue(compression.accepts("text/html; charset=UTF-8"));
+        assertFalse(compression.accepts("image/png"));
+    }
+}
@@ -0,0 +1,355 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import hr.fer.zemris.java.webserver.SmartHttpServer;
+import hr.fer.zemris.java.webserver.WebrootIndex;
+
+public class ServerConnectionTest {
+
+    @TempDir
+    Path directory;
+
+    // start and stop are protected, the test reaches them through a subclass
+    private static class TestServer extends SmartHttpServer implements AutoCloseable {
+        private TestServer(Path config) {
+            super(config.toString());
+            start();
+        }
+
+        @Override
+        public void close() {
+            stop();
+        }
+    }
+
+    // server with the repository's configuration on a port chosen by the system
+    private TestServer server(String... overrides) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Path.of("config/server.properties"))) {
+            properties.load(in);
+        }
+        properties.setProperty("server.port", "0");
+        properties.setProperty("server.shutdown.drainTimeout", "1");
+        for (String override : overrides) {
+            String[] pair = override.split("=", 2);
+            properties.setProperty(pair[0], pair[1]);
+        }
+        Path config = directory.resolve("server.properties");
+        try (OutputStream out = Files.newOutputStream(config)) {
+            properties.store(out, null);
+        }
+        return new TestServer(config);
+    }
+
+    private static Socket connect(TestServer server) throws IOException {
+        Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static String get(String path, String... headers) {
+        StringBuilder request = new StringBuilder("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n");
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        return request.append("\r\n").toString();
+    }
+
+    private static void send(Socket socket, String requests) throws IOException {
+        socket.getOutputStream().write(requests.getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    private static String file(String name) throws IOException {
+        return Files.readString(Path.of("webroot", name), StandardCharsets.ISO_8859_1);
+    }
+
+    private static class Response {
+        private String statusLine;
+        // names in lower case
+        private Map<String, String> headers = new HashMap<String, String>();
+        private String body;
+    }
+
+    // one response framed by its Content-Length, its chunks or the end of the connection
+    private static Response read(InputStream in) throws IOException {
+        Response response = new Response();
+        response.statusLine = line(in);
+        String header;
+        while (!(header = line(in)).isEmpty()) {
+            int colon = header.indexOf(':');
+            response.headers.put(header.substring(0, colon).trim().toLowerCase(Locale.ROOT), header.substring(colon + 1).trim());
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equals(response.headers.get("transfer-encoding"))) {
+            int size;
+            while ((size = Integer.parseInt(line(in).split(";")[0], 16)) > 0) {
+                body.write(in.readNBytes(size));
+                assertEquals("", line(in));
+            }
+            while (!line(in).isEmpty()) {
+                // trailer
+            }
+        } else if (!response.headers.containsKey("content-length")) {
+            // body of a response which closes the connection ends with it
+            body.write(in.readAllBytes());
+        } else {
+            int length = Integer.parseInt(response.headers.get("content-length"));
+            byte[] content = in.readNBytes(length);
+            if (content.length < length) {
+                throw new EOFException();
+            }
+            body.write(content);
+        }
+        response.body = body.toString(StandardCharsets.ISO_8859_1);
+        return response;
+    }
+
+    private static String line(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            line.append((char) c);
+        }
+        return line.toString().replace("\r", "");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testPersistentConnection(String transport) throws IOException {
+        try (TestServer server = server("server.transport=" + transport); Socket socket = connect(server)) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            // file with a known length, dynamic page in chunks, both on the same connection
+            send(socket, get("/index.html"));
+            Response page = read(in);
+            assertEquals("HTTP/1.1 200 OK", page.statusLine);
+            assertEquals(file("index.html"), page.body);
+            assertNull(page.headers.get("connection"));
+
+            send(socket, get("/hello"));
+            Response hello = read(in);
+            assertEquals("chunked", hello.headers.get("transfer-encoding"));
+            assertTrue(hello.body.contains("<h1>Hello!!!</h1>"), hello.body);
+
+            send(socket, get("/sample.txt", "Connection: close"));
+            Response last = read(in);
+            assertEquals(file("sample.txt"), last.body);
+            assertEquals("close", last.headers.get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testConnectionTokenList(String transport) throws IOException {
+        try (TestServer server = server("server.transport=" + transport); Socket socket = connect(server)) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            // HTTP/1.0 client asking for a persistent connection among other tokens
+            send(socket, "GET /sample.txt HTTP/1.0\r\nHost: localhost\r\nConnection: Keep-Alive, Upgrade\r\n\r\n");
+            Response kept = read(in);
+            assertEquals(file("sample.txt"), kept.body);
+            assertEquals("keep-alive", kept.headers.get("connection").toLowerCase(Locale.ROOT));
+
+            send(socket, get("/sample.txt", "Connection: TE, close", "TE: trailers"));
+            Response last = read(in);
+            assertEquals(file("sample.txt"), last.body);
+            assertEquals("close", last.headers.get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testMaxRequestsClosesConnection(String transport) throws IOException {
+        try (TestServer server = server("server.transport=" + transport, "server.keepAlive.maxRequests=2");
+                Socket socket = connect(server)) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            send(socket, get("/sample.txt"));
+            assertNull(read(in).headers.get("connection"));
+            send(socket, get("/hello"));
+            Response second = read(in);
+            assertTrue(second.body.contains("<h1>Hello!!!</h1>"), second.body);
+            assertEquals("close", second.headers.get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({"blocking, false", "blocking, true", "nio, false", "nio, true"})
+    public void testPipelinedResponsesInOrder(String transport, boolean concurrent) throws IOException {
+        // the file doesn't fit into the buffer of responses waiting for their turn, the small ones do
+        try (TestServer server = server("server.transport=" + transport, "server.pipelining.concurrent=" + concurrent,
+                "server.pipelining.maxBufferedBytes=65536"); Socket socket = connect(server)) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            // dynamic page first, so the files behind it are ready before it when processed concurrently
+            send(socket, get("/hello") + get("/fruits.png") + get("/index.html") + get("/nothing.html") + get("/sample.txt"));
+
+            assertTrue(read(in).body.contains("<h1>Hello!!!</h1>"));
+            assertEquals(file("fruits.png"), read(in).body);
+            assertEquals(file("index.html"), read(in).body);
+            assertEquals("HTTP/1.1 404 Not Found", read(in).statusLine);
+            assertEquals(file("sample.txt"), read(in).body);
+
+            send(socket, get("/index.html", "Connection: close"));
+            assertEquals(file("index.html"), read(in).body);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testWithoutQueue(String transport) throws IOException {
+        try (TestServer server = server("server.transport=" + transport, "server.queue.capacity=0");
+                Socket socket = connect(server)) {
+            send(socket, get("/sample.txt", "Connection: close"));
+            assertEquals(file("sample.txt"), read(new BufferedInputStream(socket.getInputStream())).body);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testIdleConnectionMakesRoomForQueued(boolean queuedFirst) throws IOException {
+        // idle connection would hold the only worker thread longer than the other one may wait in the queue
+        try (TestServer server = server("server.workerThreads=1", "server.keepAlive.timeout=30", "server.queue.maxWait=3000");
+                Socket idle = connect(server)) {
+            InputStream idleIn = new BufferedInputStream(idle.getInputStream());
+            // queued before the connection turns idle (it closes itself), or after (acceptor closes it)
+            Socket waiting = queuedFirst ? connect(server) : null;
+            send(idle, get("/sample.txt"));
+            assertEquals(file("sample.txt"), read(idleIn).body);
+            if (waiting == null) {
+                waiting = connect(server);
+            }
+
+            try (Socket socket = waiting) {
+                send(socket, get("/index.html"));
+                assertEquals(file("index.html"), read(new BufferedInputStream(socket.getInputStream())).body);
+            }
+            assertEquals(-1, idleIn.read());
+        }
+    }
+
+    @Test
+    public void testVirtualExecutorFallbackIsBounded() throws Exception {
+        assumeTrue(Runtime.version().feature() < 21, "JVM has virtual threads");
+        try (TestServer server = server("server.executor=virtual", "server.workerThreads=1", "server.queue.capacity=0");
+                Socket idle = connect(server)) {
+            // idle keep-alive connection holds the only worker thread
+            send(idle, get("/sample.txt"));
+            assertEquals(file("sample.txt"), read(new BufferedInputStream(idle.getInputStream())).body);
+
+            try (Socket rejected = connect(server)) {
+                send(rejected, get("/sample.txt"));
+                assertEquals("HTTP/1.1 503 Service Unavailable", read(new BufferedInputStream(rejected.getInputStream())).statusLine);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testStopAnswersQueuedRequests(String transport) throws Exception {
+        TestServer server = server("server.transport=" + transport, "server.workerThreads=1");
+        try (Socket busy = connect(server); Socket queued = connect(server)) {
+            // the only worker thread waits for the rest of a body, the other request waits for the worker
+            send(busy, "POST /ext/EchoParams HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 10\r\n\r\na=1");
+            Thread.sleep(300);
+            send(queued, get("/sample.txt"));
+            Thread.sleep(300);
+
+            server.close();
+
+            assertEquals("HTTP/1.1 503 Service Unavailable", read(new BufferedInputStream(queued.getInputStream())).statusLine);
+            assertEquals(2, server.getMetrics().getAbortedRequests());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    public void testChangedFileInvalidatesFingerprintedUrl(String transport) throws Exception {
+        Path webroot = Files.createDirectories(directory.resolve("webroot"));
+        Files.writeString(webroot.resolve("style.css"), "body { color: red; }");
+        WebrootIndex index = new WebrootIndex(webroot, Map.of());
+        index.build();
+        String old = index.fingerprint("/style.css");
+
+        try (TestServer server = server("server.transport=" + transport, "server.documentRoot=" + webroot);
+                Socket socket = connect(server)) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            // second request is served from the cache
+            for (int i = 0; i < 2; i++) {
+                send(socket, get(old));
+                Response response = read(in);
+                assertEquals("body { color: red; }", response.body);
+                assertEquals("public, max-age=31536000, immutable", response.headers.get("cache-control"));
+            }
+
+            // replaced at once, so the server never sees the file half written
+            Path replacement = Files.writeString(directory.resolve("style.css"), "body { color: darkgreen; }");
+            Files.move(replacement, webroot.resolve("style.css"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            index.update(webroot.resolve("style.css"));
+            String current = index.fingerprint("/style.css");
+
+            // url with the old hash stops naming the file once the server notices the change
+            Response stale = null;
+            for (long end = System.currentTimeMillis() + 10000; System.currentTimeMillis() < end; Thread.sleep(100)) {
+                send(socket, get(old));
+                stale = read(in);
+                if (!stale.statusLine.endsWith("200 OK")) {
+                    break;
+                }
+            }
+            assertEquals("HTTP/1.1 404 Not Found", stale.statusLine);
+
+            // index and caches are updated one after another, until then the new url may not be known yet
+            Response fresh = null;
+            for (long end = System.currentTimeMillis() + 10000; System.currentTimeMillis() < end; Thread.sleep(100)) {
+                send(socket, get(current));
+                fresh = read(in);
+                if (fresh.body.equals("body { color: darkgreen; }")) {
+                    break;
+                }
+            }
+            assertEquals("body { color: darkgreen; }", fresh.body);
+            assertEquals("public, max-age=31536000, immutable", fresh.headers.get("cache-control"));
+            // plain url shares the cache entry, without the immutable header
+            send(socket, get("/style.css"));
+            Response plain = read(in);
+            assertEquals("body { color: darkgreen; }", plain.body);
+            assertNull(plain.headers.get("cache-control"));
+        }
+    }
+}
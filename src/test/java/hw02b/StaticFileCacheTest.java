@@ -0,0 +1,66 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+import hr.fer.zemris.java.webserver.StaticFileCache;
+
+public class StaticFileCacheTest {
+
+    private static StaticFileCache.Entry entry(int size) {
+        return new StaticFileCache.Entry(new byte[0], new byte[size], "\"0\"", 0);
+    }
+
+    @Test
+    public void testHotEntrySurvivesScan() {
+        StaticFileCache cache = new StaticFileCache(1000, 200);
+        Path hot = Path.of("webroot/index.html");
+        cache.put(hot, entry(100), cache.generation());
+        // second hit promotes it to the protected segment
+        assertNotNull(cache.get(hot));
+
+        for (int i = 0; i < 50; i++) {
+            cache.put(Path.of("webroot/scan" + i + ".txt"), entry(100), cache.generation());
+        }
+
+        assertNotNull(cache.get(hot));
+        assertNull(cache.get(Path.of("webroot/scan0.txt")));
+        assertNotNull(cache.get(Path.of("webroot/scan49.txt")));
+    }
+
+    @Test
+    public void testInvalidateDirectory() {
+        StaticFileCache cache = new StaticFileCache(1000, 200);
+        cache.put(Path.of("webroot/images/a.jpg"), entry(10), cache.generation());
+        cache.put(Path.of("webroot/index.html"), entry(10), cache.generation());
+
+        cache.invalidate(Path.of("webroot/images"));
+
+        assertNull(cache.get(Path.of("webroot/images/a.jpg")));
+        assertNotNull(cache.get(Path.of("webroot/index.html")));
+    }
+
+    @Test
+    public void testContentReadBeforeInvalidationIsNotStored() {
+        StaticFileCache cache = new StaticFileCache(1000, 200);
+        Path path = Path.of("webroot/index.html");
+        long generation = cache.generation();
+        cache.invalidate(path);
+        cache.put(path, entry(10), generation);
+
+        assertNull(cache.get(path));
+    }
+
+    @Test
+    public void testLargeFilesAreNotAccepted() {
+        StaticFileCache cache = new StaticFileCache(1000, 200);
+        assertTrue(cache.accepts(200));
+        assertFalse(cache.accepts(201));
+    }
+}
@@ -0,0 +1,51 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import hr.fer.zemris.java.webserver.TimingWheel;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testExpiresNotBeforeDeadline() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        try {
+            CountDownLatch fired = new CountDownLatch(1);
+            long start = System.currentTimeMillis();
+            // longer than one turn of the wheel (8 * 10 ms)
+            TimingWheel.Timeout timeout = wheel.schedule(150, fired::countDown);
+
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+            assertTrue(System.currentTimeMillis() - start >= 150);
+            assertTrue(timeout.isExpired());
+            assertFalse(timeout.cancel());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void testCancelledTimeoutNeverFires() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        try {
+            AtomicBoolean cancelledFired = new AtomicBoolean();
+            CountDownLatch laterFired = new CountDownLatch(1);
+            TimingWheel.Timeout timeout = wheel.schedule(30, () -> cancelledFired.set(true));
+            wheel.schedule(100, laterFired::countDown);
+
+            assertTrue(timeout.cancel());
+            assertTrue(laterFired.await(2, TimeUnit.SECONDS));
+            assertFalse(cancelledFired.get());
+            assertFalse(timeout.isExpired());
+        } finally {
+            wheel.stop();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package hw02b;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import hr.fer.zemris.java.webserver.WebrootIndex;
+
+public class WebrootIndexTest {
+
+    private static WebrootIndex index(Path root) throws IOException {
+        Files.createDirectories(root.resolve("images"));
+        Files.writeString(root.resolve("images/logo.png"), "png content");
+        Files.writeString(root.resolve("README"), "readme");
+        WebrootIndex index = new WebrootIndex(root, Map.of("png", "image/png"));
+        index.build();
+        return index;
+    }
+
+    @Test
+    public void testFingerprintRoundTrip(@TempDir Path root) throws IOException {
+        WebrootIndex index = index(root);
+        String url = index.fingerprint("/images/logo.png");
+        assertTrue(url.matches("/images/logo\\.[0-9a-f]{8}\\.png"), url);
+        assertEquals("/images/logo.png", index.unfingerprint(url));
+
+        String readme = index.fingerprint("/README");
+        assertEquals("/README", index.unfingerprint(readme));
+
+        assertEquals("image/png", index.get("/images/logo.png").getMimeType());
+        // unknown files keep their url, real files are not taken for fingerprinted ones
+        assertEquals("/missing.png", index.fingerprint("/missing.png"));
+        assertNull(index.unfingerprint("/images/logo.png"));
+    }
+
+    @Test
+    public void testChangedContentGetsNewUrl(@TempDir Path root) throws IOException {
+        WebrootIndex index = index(root);
+        String old = index.fingerprint("/images/logo.png");
+
+        Files.writeString(root.resolve("images/logo.png"), "new png content");
+        index.update(root.resolve("images/logo.png"));
+
+        assertNotEquals(old, index.fingerprint("/images/logo.png"));
+        assertNull(index.unfingerprint(old));
+
+        Files.delete(root.resolve("images/logo.png"));
+        index.update(root.resolve("images"));
+        assertNull(index.get("/images/logo.png"));
+    }
+}